@@ -15,7 +15,6 @@
  */
 package com.trsst;
 
-import java.io.BufferedInputStream;
 import java.io.Console;
 import java.io.File;
 import java.io.FileInputStream;
@@ -710,29 +709,39 @@ public class Command {
 
         // handle binary attachment
         String mimetype = null;
-        byte[] attachment = null;
+        File attachment = null;
+        File spooled = null;
         if (attach != null) {
-            InputStream input = null;
             try {
                 if ("-".equals(attach)) {
-                    input = new BufferedInputStream(in);
+                    // spool to disk: the attachment is read as it is sent
+                    spooled = File.createTempFile("attach", ".tmp");
+                    spooled.deleteOnExit();
+                    FileOutputStream output = new FileOutputStream(spooled);
+                    try {
+                        int len;
+                        byte[] buf = new byte[8192];
+                        while ((len = in.read(buf)) != -1) {
+                            output.write(buf, 0, len);
+                        }
+                    } finally {
+                        output.close();
+                    }
+                    attachment = spooled;
                 } else {
-                    File file = new File(attach);
-                    input = new BufferedInputStream(new FileInputStream(file));
-                    System.err.println("Attaching: " + file.getCanonicalPath());
+                    attachment = new File(attach);
+                    System.err.println("Attaching: "
+                            + attachment.getCanonicalPath());
                 }
-                attachment = Common.readFully(input);
+                // detection reads only the start of the file
                 mimetype = new Tika().detect(attachment);
                 System.err.println("Detected type: " + mimetype);
             } catch (Throwable t) {
                 log.error("Could not read attachment: " + attach, t);
-                return 73; // "can't create output error"
-            } finally {
-                try {
-                    input.close();
-                } catch (IOException ioe) {
-                    // suppress any futher error on closing
+                if (spooled != null) {
+                    spooled.delete();
                 }
+                return 73; // "can't create output error"
             }
         }
 
@@ -749,7 +758,7 @@ public class Command {
             }
             options.setBody(body);
             if (attachment != null) {
-                options.addContentData(attachment, mimetype);
+                options.addContentFile(attachment, mimetype);
             } else if (url != null) {
                 options.setContentUrl(url);
             }
@@ -791,6 +800,10 @@ public class Command {
         } catch (Exception e) {
             log.error("General security error for id: " + id, e);
             return 74; // "general io error"
+        } finally {
+            if (spooled != null) {
+                spooled.delete();
+            }
         }
 
         if (result != null) {
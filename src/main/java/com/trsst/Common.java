@@ -23,11 +23,11 @@ import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyFactory;
@@ -185,6 +185,39 @@ public class Common {
         return Long.parseLong(toEntryIdString(entryUrn), 16);
     }
 
+    /**
+     * Returns the text of the last SignatureValue element in the specified
+     * serialized element without whitespace, or null if none. Scans the text
+     * rather than parsing it, so is suitable only for signed elements as
+     * stored, whose signature is their last child.
+     */
+    public static final String getSignatureValue(String element) {
+        int close = element.lastIndexOf("SignatureValue>");
+        if (close == -1) {
+            return null;
+        }
+        close = element.lastIndexOf("</", close);
+        if (close == -1) {
+            return null;
+        }
+        int open = element.lastIndexOf("SignatureValue", close);
+        if (open == -1) {
+            return null;
+        }
+        open = element.indexOf('>', open) + 1;
+        if (open == 0 || open > close) {
+            return null;
+        }
+        StringBuilder result = new StringBuilder(close - open);
+        for (int i = open; i < close; i++) {
+            char c = element.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
     public static final long generateEntryId() {
         try {
             // sleep to ensure a unique id
@@ -219,32 +252,85 @@ public class Common {
     }
 
     public static final byte[] keyHash(byte[] key) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(key);
-            return ripemd160(sha256);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return ripemd160(SHA256.get().digest(key));
     }
 
     public static final byte[] ripemd160(byte[] data) {
-        byte[] ph = new byte[20];
-        RIPEMD160Digest digest = new RIPEMD160Digest();
-        digest.update(data, 0, data.length);
-        digest.doFinal(ph, 0);
-        return ph;
+        return ripemd160(ByteBuffer.wrap(data));
     }
 
-    public static final byte[] hash(byte[] data, int offset, int len) {
-        try {
-            MessageDigest a = MessageDigest.getInstance("SHA-256");
-            a.update(data, offset, len);
-            return a.digest(a.digest());
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+    /**
+     * Returns the ripemd160 digest of the remaining bytes of the specified
+     * buffer, leaving the buffer's position at its limit.
+     */
+    public static final byte[] ripemd160(ByteBuffer data) {
+        RIPEMD160Digest digest = RIPEMD160.get();
+        digest.reset();
+        if (data.hasArray()) {
+            digest.update(data.array(),
+                    data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        } else {
+            byte[] buffer = new byte[Math.min(data.remaining(), 8192)];
+            int len;
+            while ((len = Math.min(data.remaining(), buffer.length)) > 0) {
+                data.get(buffer, 0, len);
+                digest.update(buffer, 0, len);
+            }
+        }
+        byte[] result = new byte[digest.getDigestSize()];
+        digest.doFinal(result, 0);
+        return result;
+    }
+
+    /**
+     * Returns the ripemd160 digest of the contents of the specified stream,
+     * read to its end in chunks so the contents are never held in memory.
+     * The caller must close the stream.
+     */
+    public static final byte[] ripemd160(InputStream input) throws IOException {
+        RIPEMD160Digest digest = RIPEMD160.get();
+        digest.reset();
+        int len;
+        byte[] buffer = new byte[8192];
+        while ((len = input.read(buffer)) != -1) {
+            digest.update(buffer, 0, len);
         }
+        byte[] result = new byte[digest.getDigestSize()];
+        digest.doFinal(result, 0);
+        return result;
+    }
+
+    public static final byte[] hash(byte[] data, int offset, int len) {
+        MessageDigest a = SHA256.get();
+        a.update(data, offset, len);
+        return a.digest(a.digest());
     }
 
+    /**
+     * Message digests are not thread-safe and are costly to obtain, so each
+     * thread reuses its own; digest() leaves them reset for the next use.
+     */
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * As above; reset before each use in case a previous use was interrupted
+     * by an exception while reading.
+     */
+    private static final ThreadLocal<RIPEMD160Digest> RIPEMD160 = new ThreadLocal<RIPEMD160Digest>() {
+        protected RIPEMD160Digest initialValue() {
+            return new RIPEMD160Digest();
+        }
+    };
+
     public static boolean isAccountId(String id) {
         return (decodeChecked(id) != null);
     }
@@ -277,17 +363,17 @@ public class Common {
             log.trace("decodeChecked: input too short: " + input);
             return null;
         }
-        byte[] bytes = copyOfRange(tmp, 0, tmp.length - 4);
-        byte[] checksum = copyOfRange(tmp, tmp.length - 4, tmp.length);
-
-        tmp = doubleDigest(bytes, 0, bytes.length);
-        byte[] hash = copyOfRange(tmp, 0, 4);
-        if (!Arrays.equals(checksum, hash)) {
-            log.trace("decodeChecked: checksum does not validate: " + input);
-            return null;
+        int length = tmp.length - 4;
+        byte[] hash = hash(tmp, 0, length);
+        for (int i = 0; i < 4; i++) {
+            if (tmp[length + i] != hash[i]) {
+                log.trace("decodeChecked: checksum does not validate: "
+                        + input);
+                return null;
+            }
         }
         log.trace("decodeChecked: input is valid: " + input);
-        return bytes;
+        return copyOfRange(tmp, 0, length);
     }
 
     private static final byte[] copyOfRange(byte[] source, int from, int to) {
@@ -296,28 +382,6 @@ public class Common {
         return range;
     }
 
-    /**
-     * Calculates the SHA-256 hash of the given byte range, and then hashes the
-     * resulting hash again. This is standard procedure in Bitcoin. The
-     * resulting hash is in big endian form. Borrowed from bitcoinj.
-     */
-    private static final byte[] doubleDigest(byte[] input, int offset,
-            int length) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            log.error(
-                    "Should never happen: could not find SHA-256 MD algorithm",
-                    e);
-            return null;
-        }
-        digest.reset();
-        digest.update(input, offset, length);
-        byte[] first = digest.digest();
-        return digest.digest(first);
-    }
-
     /**
      * Converts a X509-encoded EC key to a PublicKey.
      */
@@ -389,6 +453,11 @@ public class Common {
         }
     }
 
+    /**
+     * Encodes the specified bytes as base58, by repeated long division of the
+     * bytes by 58, most significant byte first; each leading zero byte
+     * becomes a leading '1'.
+     */
     public static String toBase58(byte[] b) {
         if (b.length == 0) {
             return "";
@@ -399,19 +468,28 @@ public class Common {
             ++lz;
         }
 
-        StringBuffer s = new StringBuffer();
-        BigInteger n = new BigInteger(1, b);
-        while (n.compareTo(BigInteger.ZERO) > 0) {
-            BigInteger[] r = n.divideAndRemainder(BigInteger.valueOf(58));
-            n = r[0];
-            char digit = b58[r[1].intValue()];
-            s.append(digit);
+        // each byte needs at most log(256)/log(58) < 1.37 digits
+        byte[] n = copyOfRange(b, 0, b.length);
+        char[] s = new char[b.length * 137 / 100 + 1];
+        int j = s.length;
+        int start = lz;
+        while (start < n.length) {
+            int remainder = 0;
+            for (int i = start; i < n.length; i++) {
+                int value = (remainder << 8) | (n[i] & 0xff);
+                n[i] = (byte) (value / 58);
+                remainder = value % 58;
+            }
+            s[--j] = b58[remainder];
+            while (start < n.length && n[start] == 0) {
+                ++start;
+            }
         }
         while (lz > 0) {
             --lz;
-            s.append("1");
+            s[--j] = '1';
         }
-        return s.reverse().toString();
+        return new String(s, j, s.length - j);
     }
 
     public static String toBase58WithChecksum(byte[] b) {
@@ -439,39 +517,39 @@ public class Common {
         throw new IllegalArgumentException("Checksum mismatch " + s);
     }
 
+    /**
+     * Decodes the specified base58 string, by multiplying an accumulator by
+     * 58 and adding each digit in turn; each leading '1' becomes a leading
+     * zero byte.
+     */
     public static byte[] fromBase58(String s) {
-        try {
-            boolean leading = true;
-            int lz = 0;
-            BigInteger b = BigInteger.ZERO;
-            for (char c : s.toCharArray()) {
-                if (leading && c == '1') {
-                    ++lz;
-                } else {
-                    leading = false;
-                    b = b.multiply(BigInteger.valueOf(58));
-                    b = b.add(BigInteger.valueOf(r58[c]));
-                }
+        int lz = 0;
+        while (lz < s.length() && s.charAt(lz) == '1') {
+            ++lz;
+        }
+
+        // each digit needs less than one byte: value held in n[start..]
+        byte[] n = new byte[s.length() - lz];
+        int start = n.length;
+        for (int i = lz; i < s.length(); i++) {
+            char c = s.charAt(i);
+            int carry = c < r58.length ? r58[c] : -1;
+            if (carry < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid character in address");
             }
-            byte[] encoded = b.toByteArray();
-            if (encoded[0] == 0) {
-                if (lz > 0) {
-                    --lz;
-                } else {
-                    byte[] e = new byte[encoded.length - 1];
-                    System.arraycopy(encoded, 1, e, 0, e.length);
-                    encoded = e;
-                }
+            int k = n.length - 1;
+            for (; k >= start || carry != 0; k--) {
+                carry += (n[k] & 0xff) * 58;
+                n[k] = (byte) carry;
+                carry >>>= 8;
             }
-            byte[] result = new byte[encoded.length + lz];
-            System.arraycopy(encoded, 0, result, lz, encoded.length);
-
-            return result;
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new IllegalArgumentException("Invalid character in address");
-        } catch (Exception e) {
-            throw new IllegalArgumentException(e);
+            start = k + 1;
         }
+
+        byte[] result = new byte[lz + n.length - start];
+        System.arraycopy(n, start, result, lz, n.length - start);
+        return result;
     }
 
     public static byte[] reverse(byte[] data) {
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst;
+
+import org.apache.abdera.Abdera;
+import org.apache.abdera.protocol.client.AbderaClient;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * The http client shared by clients and servers for all outbound requests, so
+ * that connections to the same host are kept alive and reused across
+ * requests.
+ *
+ * Connections are pooled with a limit per host and in total; requests that
+ * cannot get a connection, cannot connect, or stop receiving data for longer
+ * than the configured timeouts fail rather than holding their thread. Callers
+ * must release each method or response when done so its connection returns to
+ * the pool.
+ *
+ * The limits and timeouts are configured with the com.trsst.http.total,
+ * com.trsst.http.host, com.trsst.http.connect, and com.trsst.http.read
+ * properties, with timeouts in milliseconds.
+ *
+ * @author mpowers
+ */
+public class HttpPool {
+
+    /**
+     * Connections idle for this long are closed.
+     */
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+
+    private static HttpClient httpClient;
+
+    /**
+     * Returns the shared http client, creating it if needed.
+     */
+    public static synchronized HttpClient getHttpClient() {
+        if (httpClient == null) {
+            int connectTimeout = Integer.getInteger("com.trsst.http.connect",
+                    10 * 1000);
+            MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+            HttpConnectionManagerParams params = manager.getParams();
+            params.setMaxTotalConnections(Integer.getInteger(
+                    "com.trsst.http.total", 100));
+            params.setDefaultMaxConnectionsPerHost(Integer.getInteger(
+                    "com.trsst.http.host", 4));
+            params.setConnectionTimeout(connectTimeout);
+            params.setSoTimeout(Integer.getInteger("com.trsst.http.read",
+                    30 * 1000));
+            params.setStaleCheckingEnabled(true);
+            httpClient = new HttpClient(manager);
+            // wait no longer for a pooled connection than to connect
+            httpClient.getParams().setConnectionManagerTimeout(connectTimeout);
+
+            // a daemon thread, so never prevents exit
+            IdleConnectionTimeoutThread idleThread = new IdleConnectionTimeoutThread();
+            idleThread.setName("HttpPool idle connections");
+            idleThread.setConnectionTimeout(IDLE_TIMEOUT);
+            idleThread.setTimeoutInterval(IDLE_TIMEOUT / 2);
+            idleThread.addConnectionManager(manager);
+            idleThread.start();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Returns a new abdera client that sends its requests through the shared
+     * http client. Abdera clients are cheap to create; each has its own
+     * response cache, so callers should not share them.
+     */
+    public static AbderaClient getAbderaClient() {
+        return new AbderaClient(Abdera.getInstance(), getHttpClient());
+    }
+
+}
@@ -17,7 +17,10 @@ package com.trsst.client;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
@@ -52,11 +55,15 @@ import org.apache.abdera.security.Signature;
 import org.apache.abdera.security.SignatureOptions;
 import org.apache.abdera.writer.StreamWriter;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
 
 import com.trsst.Common;
 import com.trsst.Crypto;
+import com.trsst.HttpPool;
 
 /**
  * Implements the protocol-level features of the Trsst platform: creating Feeds
@@ -217,7 +224,7 @@ public class Client {
      * @return a Feed containing the latest entries for this feed id.
      */
     public Feed pull(String urn) {
-        AbderaClient client = new AbderaClient(Abdera.getInstance());
+        AbderaClient client = HttpPool.getAbderaClient();
 
         if (urn.startsWith("urn:feed:")) {
             urn = urn.substring("urn:feed:".length());
@@ -239,16 +246,22 @@ public class Client {
         }
 
         ClientResponse response = client.get(url.toString());
-        if (response.getType() == ResponseType.SUCCESS) {
-            Document<Feed> document = response.getDocument();
-            if (document != null) {
-                return document.getRoot();
+        try {
+            if (response.getType() == ResponseType.SUCCESS) {
+                Document<Feed> document = response.getDocument();
+                if (document != null) {
+                    // parse fully before releasing the connection
+                    document.complete();
+                    return document.getRoot();
+                } else {
+                    log.warn("pull: no document for: " + url);
+                }
             } else {
-                log.warn("pull: no document for: " + url);
+                log.debug("pull: no document found for: " + url + " : "
+                        + response.getType());
             }
-        } else {
-            log.debug("pull: no document found for: " + url + " : "
-                    + response.getType());
+        } finally {
+            response.release();
         }
         return null;
     }
@@ -272,36 +285,41 @@ public class Client {
         return push(pull(feedId), url);
     }
 
-    private Feed push(Feed feed, String[] contentId, String[] contentType,
-            byte[][] content, URL url) {
+    private Feed push(Feed feed, String[] contentId, RequestEntity[] content,
+            URL url) {
         try {
-            AbderaClient client = new AbderaClient(Abdera.getInstance());
+            AbderaClient client = HttpPool.getAbderaClient();
             url = new URL(url.toString() + '/'
                     + Common.fromFeedUrn(feed.getId()));
             ClientResponse response;
             if (contentId != null) {
                 response = client.post(url.toString(),
-                        new MultiPartRequestEntity(feed, content, contentId,
-                                contentType));
+                        new MultiPartRequestEntity(feed, content, contentId));
             } else {
                 response = client.post(url.toString(), feed);
             }
-            if (response.getType() == ResponseType.SUCCESS) {
-                Document<Feed> document = response.getDocument();
-                if (document != null) {
-                    return document.getRoot();
+            try {
+                if (response.getType() == ResponseType.SUCCESS) {
+                    Document<Feed> document = response.getDocument();
+                    if (document != null) {
+                        // parse fully before releasing the connection
+                        document.complete();
+                        return document.getRoot();
+                    } else {
+                        log.warn("push: no document for: " + url);
+                    }
                 } else {
-                    log.warn("push: no document for: " + url);
+                    System.err.println("Sent:");
+                    System.err.println(feed);
+                    log.error("push: invalid response for: " + url + " : "
+                            + response.getType());
+                    System.err.println("Received:");
+                    System.err.println(response.getDocument().getRoot());
+                    throw new IllegalArgumentException(response.getDocument()
+                            .getRoot().toString());
                 }
-            } else {
-                System.err.println("Sent:");
-                System.err.println(feed);
-                log.error("push: invalid response for: " + url + " : "
-                        + response.getType());
-                System.err.println("Received:");
-                System.err.println(response.getDocument().getRoot());
-                throw new IllegalArgumentException(response.getDocument()
-                        .getRoot().toString());
+            } finally {
+                response.release();
             }
         } catch (MalformedURLException e) {
             log.error("push: bad url: " + url, e);
@@ -321,7 +339,7 @@ public class Client {
      *         null if unsuccessful.
      */
     public Feed push(Feed feed, URL url) {
-        return push(feed, null, null, null, url);
+        return push(feed, null, null, url);
     }
 
     /**
@@ -422,6 +440,7 @@ public class Client {
 
         // holds any attachments (can be used for logo and icons)
         String[] contentIds = new String[options.getContentCount()];
+        RequestEntity[] contentParts = new RequestEntity[contentIds.length];
 
         // subject or verb or attachment is required to create an entry
         Entry entry = null;
@@ -471,16 +490,35 @@ public class Client {
             // for each content part
             for (int part = 0; part < contentIds.length; part++) {
                 byte[] currentContent = options.getContentData()[part];
+                File currentFile = options.getContentFiles()[part];
                 String currentType = options.getMimetypes()[part];
 
                 // encrypt before hashing if necessary
                 if (contentKey != null) {
+                    if (currentContent == null) {
+                        // encryption requires all the content
+                        currentContent = readFile(currentFile);
+                        currentFile = null;
+                    }
                     currentContent = Crypto.encryptAES(currentContent,
                             contentKey);
                 }
 
                 // calculate digest to determine content id
-                byte[] digest = Common.ripemd160(currentContent);
+                byte[] digest;
+                long currentLength;
+                if (currentContent != null) {
+                    digest = Common.ripemd160(currentContent);
+                    currentLength = currentContent.length;
+                    contentParts[part] = new ByteArrayRequestEntity(
+                            currentContent, currentType);
+                } else {
+                    // files are only read as they are sent
+                    digest = ripemd160(currentFile);
+                    currentLength = currentFile.length();
+                    contentParts[part] = new FileRequestEntity(currentFile,
+                            currentType);
+                }
                 contentIds[part] = new Base64(0, null, true)
                         .encodeToString(digest);
 
@@ -512,7 +550,7 @@ public class Client {
                     // add an enclosure link
                     entry.addLink(Common.toEntryIdString(entry.getId()) + '/'
                             + contentIds[part], Link.REL_ENCLOSURE,
-                            currentType, null, null, currentContent.length);
+                            currentType, null, null, currentLength);
                 }
 
             }
@@ -759,12 +797,29 @@ public class Client {
 
         // post to server
         if (contentIds.length > 0) {
-            return push(feed, contentIds, options.getMimetypes(),
-                    options.getContentData(), serving);
+            return push(feed, contentIds, contentParts, serving);
         }
         return push(feed, serving);
     }
 
+    private static byte[] readFile(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return Common.readFully(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[] ripemd160(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return Common.ripemd160(input);
+        } finally {
+            input.close();
+        }
+    }
+
     private final static SignatureOptions getSignatureOptions(Signature signer,
             KeyPair signingKeys) throws SecurityException {
         SignatureOptions options = signer.getDefaultSignatureOptions();
@@ -1,5 +1,6 @@
 package com.trsst.client;
 
+import java.io.File;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Date;
@@ -25,6 +26,7 @@ public class EntryOptions {
     EntryOptions publicOptions;
     private List<String> mimetype = new LinkedList<String>();
     private List<byte[]> content = new LinkedList<byte[]>();
+    private List<File> file = new LinkedList<File>();
 
     /**
      * Create empty default post options. By default, no entry is created, and
@@ -47,6 +49,7 @@ public class EntryOptions {
         tags = null;
         mimetype = null;
         content = null;
+        file = null;
         recipientKeys = null;
         decryptionKeys = null;
         publicOptions = null;
@@ -161,12 +164,20 @@ public class EntryOptions {
     }
 
     /**
-     * @return the content parallel array
+     * @return the content parallel array, with null where the content is a
+     *         file
      */
     public byte[][] getContentData() {
         return content.toArray(new byte[0][]);
     }
 
+    /**
+     * @return the file parallel array, with null where the content is data
+     */
+    public File[] getContentFiles() {
+        return file.toArray(new File[0]);
+    }
+
     /**
      * @return the size of the content parallel arrays
      */
@@ -186,6 +197,27 @@ public class EntryOptions {
                     "Cannot have set both url and data");
         }
         this.content.add(content);
+        this.file.add(null);
+        this.mimetype.add(mimetype);
+        return this;
+    }
+
+    /**
+     * Adds binary content to be uploaded and hosted, read from the specified
+     * file only as it is sent, so large media need not fit in memory.
+     * 
+     * @param file
+     *            Optional file to be uploaded and hosted.
+     * @throws IllegalArgumentException
+     *             if contentUrl is already set.
+     */
+    public EntryOptions addContentFile(File file, String mimetype) {
+        if (this.url != null) {
+            throw new IllegalArgumentException(
+                    "Cannot have set both url and data");
+        }
+        this.content.add(null);
+        this.file.add(file);
         this.mimetype.add(mimetype);
         return this;
     }
@@ -17,13 +17,15 @@
  */
 package com.trsst.client;
 
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
 import org.apache.abdera.model.Base;
 import org.apache.abdera.util.MimeTypeHelper;
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.RequestEntity;
 
 /**
@@ -31,75 +33,163 @@ import org.apache.commons.httpclient.methods.RequestEntity;
  * attachments. Per convention, each content id should match an id referenced in
  * an entry with a corresponding digest or the server must reject.
  * 
+ * Attachments are themselves request entities, typically file or byte array
+ * entities, and are base64-encoded in chunks as they are written, so content
+ * is never held in memory. The content length is calculated from the lengths
+ * of the parts; if any part's length is unknown, so is the length of the
+ * request, and the request is sent with chunked transfer encoding.
+ * 
  * @author mpowers
  */
 public class MultiPartRequestEntity implements RequestEntity {
 
     private final Base base;
-    private final byte[][] content;
+    private final byte[] baseData;
+    private final RequestEntity[] content;
     private final String[] contentId;
-    private final String[] contentType;
-    private long contentLength;
-    private String boundary;
+    private final long contentLength;
+    private final String boundary;
 
     public MultiPartRequestEntity(Base base, byte[][] content,
             String[] contentId, String[] contentType) {
+        this(base, toEntities(content, contentType), contentId);
+    }
+
+    /**
+     * @param base
+     *            the entry or feed.
+     * @param content
+     *            the attachments, each with a content type.
+     * @param contentId
+     *            the content id of each attachment.
+     */
+    public MultiPartRequestEntity(Base base, RequestEntity[] content,
+            String[] contentId) {
         this.base = base;
         this.content = content;
         this.contentId = contentId;
-        this.contentType = contentType;
-        this.boundary = boundary != null ? boundary : String.valueOf(System
-                .currentTimeMillis());
+        this.boundary = String.valueOf(System.currentTimeMillis());
         try {
-            // dummy output stream to count the content length
-            contentLength = 0;
-            writeRequest(new OutputStream() {
-                @Override
-                public void write(int b) {
-                    contentLength++;
-                }
-
-                @Override
-                public void write(byte[] b, int off, int len) {
-                    contentLength += len;
-                }
-            });
+            // serialize once: the entry is small and must be counted
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            base.writeTo(out);
+            this.baseData = out.toByteArray();
         } catch (IOException e) {
-            this.contentLength = -1;
-            log.error("Unexpected error while determining content length");
+            // not expected when writing to memory
+            throw new IllegalArgumentException(e);
         }
+        this.contentLength = calculateContentLength();
         log.debug("MultiPartRequestEntity: contentLength: " + contentLength);
     }
 
-    public void writeRequest(OutputStream arg0) throws IOException {
-        DataOutputStream out = new DataOutputStream(arg0);
-        out.writeBytes("--" + boundary + "\r\n");
-        writeEntry(base, out);
-        out.writeBytes("--" + boundary + "\r\n");
+    private static RequestEntity[] toEntities(byte[][] content,
+            String[] contentType) {
+        if (content == null) {
+            return null;
+        }
+        RequestEntity[] result = new RequestEntity[content.length];
+        for (int i = 0; i < content.length; i++) {
+            result[i] = new ByteArrayRequestEntity(content[i], contentType[i]);
+        }
+        return result;
+    }
+
+    private long calculateContentLength() {
+        long result = 0;
+        result += getBoundary().length;
+        result += getEntryHeader(base).length;
+        result += baseData.length;
+        result += getBoundary().length;
         if (content != null) {
+            long length;
             for (int i = 0; i < content.length; i++) {
-                writeContent(content[i], contentId[i], contentType[i], out);
-                out.writeBytes("\r\n" + "--" + boundary + "--");
+                length = content[i].getContentLength();
+                if (length < 0) {
+                    return -1; // unknown: send chunked
+                }
+                result += getContentHeader(content[i], contentId[i]).length;
+                result += getEncodedLength(length);
+                result += getDelimiter(i == content.length - 1).length;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the length of the unchunked base64 encoding of the specified
+     * number of bytes.
+     */
+    static long getEncodedLength(long length) {
+        return 4 * ((length + 2) / 3);
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        out.write(getBoundary());
+        out.write(getEntryHeader(base));
+        out.write(baseData);
+        out.write(getBoundary());
+        if (content != null) {
+            for (int i = 0; i < content.length; i++) {
+                writeContent(content[i], contentId[i], out);
+                out.write(getDelimiter(i == content.length - 1));
             }
         }
         out.flush();
     }
 
-    private static void writeEntry(Base base, DataOutputStream out)
-            throws IOException {
-        out.writeBytes("content-type: " + MimeTypeHelper.getMimeType(base)
+    private byte[] getBoundary() {
+        return toBytes("--" + boundary + "\r\n");
+    }
+
+    /**
+     * Returns the delimiter that follows an attachment: the close delimiter
+     * only after the last.
+     */
+    private byte[] getDelimiter(boolean last) {
+        return toBytes("\r\n" + "--" + boundary + (last ? "--" : "\r\n"));
+    }
+
+    private static byte[] getEntryHeader(Base base) {
+        return toBytes("content-type: " + MimeTypeHelper.getMimeType(base)
                 + "\r\n\r\n");
-        base.writeTo(out);
     }
 
-    private static void writeContent(byte[] content, String contentId,
-            String contentType, DataOutputStream out) throws IOException {
-        if (contentType == null) {
+    private static byte[] getContentHeader(RequestEntity content,
+            String contentId) {
+        if (content.getContentType() == null) {
             throw new NullPointerException("media content type can't be null");
         }
-        out.writeBytes("content-type: " + contentType + "\r\n");
-        out.writeBytes("content-id: <cid:" + contentId + ">\r\n\r\n");
-        out.write(new Base64().encode(content));
+        return toBytes("content-type: " + content.getContentType() + "\r\n"
+                + "content-id: <cid:" + contentId + ">\r\n\r\n");
+    }
+
+    private static void writeContent(RequestEntity content, String contentId,
+            OutputStream out) throws IOException {
+        out.write(getContentHeader(content, contentId));
+        // encode without line breaks so the length is predictable
+        OutputStream encoder = new Base64OutputStream(new FilterOutputStream(
+                out) {
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            public void close() throws IOException {
+                flush(); // leave the request stream open
+            }
+        }, true, 0, null);
+        content.writeRequest(encoder);
+        encoder.close(); // writes any padding
+    }
+
+    /**
+     * Headers are always ascii, like DataOutputStream.writeBytes.
+     */
+    private static byte[] toBytes(String s) {
+        byte[] result = new byte[s.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) s.charAt(i);
+        }
+        return result;
     }
 
     public long getContentLength() {
@@ -112,6 +202,13 @@ public class MultiPartRequestEntity implements RequestEntity {
     }
 
     public boolean isRepeatable() {
+        if (content != null) {
+            for (RequestEntity part : content) {
+                if (!part.isRepeatable()) {
+                    return false;
+                }
+            }
+        }
         return true;
     }
 
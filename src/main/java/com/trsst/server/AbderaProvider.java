@@ -204,7 +204,9 @@ public class AbderaProvider extends AbstractWorkspaceProvider implements
 
     /**
      * Override to return a custom storage instance. This implementation
-     * defaults to a single shared LuceneStorage instance.
+     * defaults to a single shared LuceneStorage instance, which stores entries
+     * in segment files if the "com.trsst.server.segments" property is "true",
+     * and otherwise in individual files.
      * 
      * @param feedId
      *            a hint for implementors
@@ -213,8 +215,15 @@ public class AbderaProvider extends AbstractWorkspaceProvider implements
     protected Storage getStorage() {
         if (sharedStorage == null) {
             try {
-                Storage clientStorage = new FileStorage(Common.getClientRoot());
-                Storage cacheStorage = new FileStorage(Common.getServerRoot());
+                Storage clientStorage;
+                Storage cacheStorage;
+                if (Boolean.getBoolean("com.trsst.server.segments")) {
+                    clientStorage = new SegmentStorage(Common.getClientRoot());
+                    cacheStorage = new SegmentStorage(Common.getServerRoot());
+                } else {
+                    clientStorage = new FileStorage(Common.getClientRoot());
+                    cacheStorage = new FileStorage(Common.getServerRoot());
+                }
                 sharedStorage = new LuceneStorage(cacheStorage, clientStorage);
             } catch (IOException e) {
                 log.error("Could not initialize storage", e);
@@ -17,10 +17,16 @@
  */
 package com.trsst.server;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.util.Collection;
 import java.util.Enumeration;
@@ -44,7 +50,9 @@ import org.apache.abdera.protocol.server.multipart.MultipartInputStream;
 import org.apache.abdera.protocol.server.multipart.MultipartRelatedCollectionInfo;
 import org.apache.abdera.util.Constants;
 import org.apache.abdera.util.MimeTypeHelper;
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
+
+import com.trsst.Common;
 
 @SuppressWarnings("unchecked")
 public abstract class AbstractMultipartAdapter extends
@@ -67,9 +75,9 @@ public abstract class AbstractMultipartAdapter extends
             RequestContext request, InputStream requestData) throws IOException, ParseException,
             MessagingException {
 
-        //NOTE: because request.getInputStream() has already been read 
-        // we pass in a seperate input stream containing the request data
-        MultipartInputStream stream = getMultipartStream(request, requestData);
+        //NOTE: callers pass in the request data so they may wrap it
+        RequestCopyInputStream input = new RequestCopyInputStream(requestData);
+        MultipartInputStream stream = getMultipartStream(request, input);
         List<MultipartRelatedPost> result = new LinkedList<MultipartRelatedPost>();
         stream.skipBoundary();
 
@@ -77,7 +85,8 @@ public abstract class AbstractMultipartAdapter extends
 
         Document<Source> source = null;
         Map<String, String> entryHeaders = new HashMap<String, String>();
-        InputStream data = null;
+        File data = null;
+        byte[] digest = null;
         Map<String, String> dataHeaders = new HashMap<String, String>();
 
         Map<String, String> headers = getHeaders(stream);
@@ -98,31 +107,97 @@ public abstract class AbstractMultipartAdapter extends
             // dataHeaders.putAll(headers);
         }
 
+        boolean keepSpoolFiles = false;
         try {
-            while (stream.available() > 0) {
-                stream.skipBoundary();
-                headers = getHeaders(stream);
-                if (start != null
-                        && (headers.containsKey(CONTENT_ID_HEADER) && start
-                                .equals(headers.get(CONTENT_ID_HEADER)))
-                        && (headers.containsKey(CONTENT_TYPE_HEADER) && MimeTypeHelper
-                                .isAtom(headers.get(CONTENT_TYPE_HEADER)))) {
-                    throw new ParseException(
-                            "Should not have found a second feed or entry: "
-                                    + headers);
-                } else {
-                    data = getDataInputStream(stream);
-                    dataHeaders.putAll(headers);
+            input.copyTo(getRequestCopy(source, request));
+            try {
+                while (stream.available() > 0) {
+                    stream.skipBoundary();
+                    headers = getHeaders(stream);
+                    if (start != null
+                            && (headers.containsKey(CONTENT_ID_HEADER) && start
+                                    .equals(headers.get(CONTENT_ID_HEADER)))
+                            && (headers.containsKey(CONTENT_TYPE_HEADER) && MimeTypeHelper
+                                    .isAtom(headers.get(CONTENT_TYPE_HEADER)))) {
+                        throw new ParseException(
+                                "Should not have found a second feed or entry: "
+                                        + headers);
+                    } else {
+                        // each part has its own headers
+                        dataHeaders = new HashMap<String, String>();
+                        data = createSpoolFile();
+                        try {
+                            digest = spoolDataPart(stream, data);
+                        } catch (IOException ioe) {
+                            data.delete();
+                            throw ioe;
+                        }
+                        dataHeaders.putAll(headers);
+                    }
+                    result.add(new MultipartRelatedPost(source, data, digest,
+                            entryHeaders, dataHeaders));
+                    checkMultipartContent(source, dataHeaders, request);
                 }
-                checkMultipartContent(source, dataHeaders, request);
-                result.add( new MultipartRelatedPost(source, data, entryHeaders, dataHeaders) );
+            } catch (IOException ioe) {
+                // a truncated request still yields the parts read completely
+                log.error("Unexpected error parsing multipart data", ioe);
+            }
+            input.finish();
+            keepSpoolFiles = true;
+        } finally {
+            input.closeCopy();
+            if (!keepSpoolFiles) {
+                // request rejected: don't leave spooled data behind
+                deleteSpoolFiles(result);
             }
-        } catch (IOException ioe) {
-            log.error("Unexpected error parsing multipart data", ioe);
         }
         return result;
     }
 
+    /**
+     * Returns a stream to receive a copy of the whole raw request once the
+     * specified feed or entry has been parsed, or null if no copy is needed.
+     * The stream is closed when the request has been read. By default no
+     * copy is made.
+     */
+    protected OutputStream getRequestCopy(Document<Source> source,
+            RequestContext request) throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the directory in which request data is spooled, or null to use
+     * the system temporary directory. Override to spool to a directory on the
+     * same file system as storage so spooled files can be moved into place.
+     */
+    protected File getSpoolDirectory() {
+        return null;
+    }
+
+    /**
+     * Creates a new empty file in the spool directory.
+     */
+    protected File createSpoolFile() throws IOException {
+        File directory = getSpoolDirectory();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        return File.createTempFile("spool", ".tmp", directory);
+    }
+
+    /**
+     * Deletes any spooled data that remains for the specified posts.
+     */
+    protected void deleteSpoolFiles(List<MultipartRelatedPost> posts) {
+        if (posts != null) {
+            for (MultipartRelatedPost post : posts) {
+                if (post.getFile() != null) {
+                    post.getFile().delete();
+                }
+            }
+        }
+    }
+
     private MultipartInputStream getMultipartStream(RequestContext request, InputStream inputStream)
             throws IOException, ParseException, IllegalArgumentException {
         String boundary = request.getContentType().getParameter(BOUNDARY_PARAM);
@@ -218,16 +293,41 @@ public abstract class AbstractMultipartAdapter extends
         return false;
     }
 
-    private InputStream getDataInputStream(InputStream stream)
+    /**
+     * Decodes the base64 contents of the current part into the specified
+     * file, computing the ripemd160 digest of the decoded data as it is
+     * written so the data is never held in memory.
+     * 
+     * @return the digest of the decoded data.
+     */
+    private byte[] spoolDataPart(InputStream stream, File file)
             throws IOException {
-        Base64 base64 = new Base64();
-        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        final OutputStream output = new BufferedOutputStream(
+                new FileOutputStream(file));
+        try {
+            // write out each chunk as the digest reads it
+            return Common.ripemd160(new FilterInputStream(
+                    new Base64InputStream(stream)) {
+                public int read() throws IOException {
+                    int result = super.read();
+                    if (result != -1) {
+                        output.write(result);
+                    }
+                    return result;
+                }
 
-        byte[] buffer = new byte[1024];
-        while (stream.read(buffer) != -1) {
-            bo.write(buffer);
+                public int read(byte[] buffer, int offset, int length)
+                        throws IOException {
+                    int result = super.read(buffer, offset, length);
+                    if (result > 0) {
+                        output.write(buffer, offset, result);
+                    }
+                    return result;
+                }
+            });
+        } finally {
+            output.close();
         }
-        return new ByteArrayInputStream(base64.decode(bo.toByteArray()));
     }
 
     private <T extends Element> Document<T> getEntry(InputStream stream,
@@ -258,17 +358,100 @@ public abstract class AbstractMultipartAdapter extends
         return false;
     }
 
+    /**
+     * Holds the raw bytes read in memory until told whether a copy of the
+     * request is needed, and then writes them and all later bytes to that
+     * copy, so the request is read only once either way.
+     */
+    private static class RequestCopyInputStream extends FilterInputStream {
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputStream copy;
+
+        RequestCopyInputStream(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * Writes the bytes read so far and all later bytes to the specified
+         * stream, or stops keeping them if null.
+         */
+        void copyTo(OutputStream output) throws IOException {
+            if (output != null) {
+                buffer.writeTo(output);
+            }
+            buffer = null;
+            copy = output;
+        }
+
+        /**
+         * Copies any bytes that remain unread.
+         */
+        void finish() throws IOException {
+            if (copy != null) {
+                byte[] chunk = new byte[8192];
+                while (read(chunk, 0, chunk.length) != -1) {
+                    // copied as read
+                }
+            }
+        }
+
+        void closeCopy() throws IOException {
+            if (copy != null) {
+                copy.close();
+                copy = null;
+            }
+        }
+
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                if (buffer != null) {
+                    buffer.write(result);
+                } else if (copy != null) {
+                    copy.write(result);
+                }
+            }
+            return result;
+        }
+
+        public int read(byte[] bytes, int offset, int length)
+                throws IOException {
+            int result = super.read(bytes, offset, length);
+            if (result > 0) {
+                if (buffer != null) {
+                    buffer.write(bytes, offset, result);
+                } else if (copy != null) {
+                    copy.write(bytes, offset, result);
+                }
+            }
+            return result;
+        }
+
+        public long skip(long n) throws IOException {
+            // read rather than skip so skipped bytes are copied
+            byte[] chunk = new byte[(int) Math.min(n, 8192)];
+            int result = read(chunk, 0, chunk.length);
+            return result == -1 ? 0 : result;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
     protected class MultipartRelatedPost {
         private final Document<Source> source;
-        private final InputStream data;
+        private final File file;
+        private final byte[] digest;
         private final Map<String, String> entryHeaders;
         private final Map<String, String> dataHeaders;
 
-        public MultipartRelatedPost(Document<Source> base, InputStream data,
-                Map<String, String> entryHeaders,
+        public MultipartRelatedPost(Document<Source> base, File file,
+                byte[] digest, Map<String, String> entryHeaders,
                 Map<String, String> dataHeaders) {
             this.source = base;
-            this.data = data;
+            this.file = file;
+            this.digest = digest;
             this.entryHeaders = entryHeaders;
             this.dataHeaders = dataHeaders;
         }
@@ -277,8 +460,26 @@ public abstract class AbstractMultipartAdapter extends
             return source;
         }
 
-        public InputStream getData() {
-            return data;
+        /**
+         * Opens a stream to read the decoded data; callers must close it.
+         */
+        public InputStream getData() throws IOException {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+
+        /**
+         * Returns the spooled file containing the decoded data; callers may
+         * move or delete it.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the ripemd160 digest of the decoded data.
+         */
+        public byte[] getDigest() {
+            return digest;
         }
 
         public Map<String, String> getEntryHeaders() {
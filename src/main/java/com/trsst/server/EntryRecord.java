@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.util.Date;
+
+/**
+ * Holds the arguments for a single entry in a batch passed to
+ * Storage.updateEntries(). Like Storage, this class intentionally has no
+ * dependencies on the trsst or abdera frameworks.
+ *
+ * @author mpowers
+ */
+public class EntryRecord {
+
+    private final long entryId;
+    private final Date publishDate;
+    private final String content;
+
+    /**
+     * @param entryId
+     *            the unique identifier for the entry to be persisted.
+     * @param publishDate
+     *            the datetime when this entry says it was or will be
+     *            published; used for date/time range queries
+     * @param content
+     *            a signed entry element whose contents are to be persisted.
+     */
+    public EntryRecord(long entryId, Date publishDate, String content) {
+        this.entryId = entryId;
+        this.publishDate = publishDate;
+        this.content = content;
+    }
+
+    public long getEntryId() {
+        return entryId;
+    }
+
+    public Date getPublishDate() {
+        return publishDate;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+}
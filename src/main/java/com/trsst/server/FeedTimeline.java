@@ -0,0 +1,449 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+/**
+ * In-memory index of the entries of a single feed, ordered with most recent
+ * entries first. Entries are kept in parallel primitive arrays of publish
+ * dates and entry ids, sorted by date and then by id, both descending, so
+ * date ranges and pages are found by binary search. A primitive map from
+ * entry id to publish date locates any entry by binary search as well.
+ *
+ * The timeline also remembers a hash of the signature value of each entry
+ * whose signature is known, in an array parallel to the entry ids, so callers
+ * can tell whether an entry is already stored with the same signature without
+ * reading it.
+ *
+ * Instances are thread-safe.
+ *
+ * @author mpowers
+ */
+class FeedTimeline {
+
+    /**
+     * Signature hash of an entry whose signature value is not known.
+     */
+    private static final long UNKNOWN = 0;
+
+    private long[] dates;
+    private long[] ids;
+    private long[] signatures;
+    private int size;
+    private final DateIndex datesById;
+    private long modCount;
+
+    /**
+     * Creates a timeline from the specified unsorted entries; the arrays are
+     * retained and sorted in place.
+     *
+     * @param dates
+     *            the publish date of each entry in milliseconds.
+     * @param ids
+     *            the id of each entry.
+     */
+    FeedTimeline(long[] dates, long[] ids) {
+        this.dates = dates;
+        this.ids = ids;
+        this.size = ids.length;
+        this.signatures = new long[size];
+        this.datesById = new DateIndex(size);
+        for (int i = 0; i < size; i++) {
+            datesById.put(ids[i], dates[i]);
+        }
+        sort(dates, ids, new long[size], new long[size], 0, size);
+    }
+
+    /**
+     * Returns the number of entries published after and before the specified
+     * times, exclusive, where zero means no restriction.
+     */
+    synchronized int count(long after, long before) {
+        return end(after) - start(before);
+    }
+
+    /**
+     * Returns up to length entry ids, skipping the first offset entries
+     * published after and before the specified times, exclusive, where zero
+     * means no restriction.
+     */
+    synchronized long[] getEntryIds(int offset, int length, long after,
+            long before) {
+        return copy(start(before) + offset, end(after), length);
+    }
+
+    /**
+     * Returns up to length entry ids that follow the specified entry id and
+     * are published after and before the specified times, exclusive, where
+     * zero means no restriction. If the specified entry is not in this
+     * timeline, resumes where it would have been if it were published at the
+     * time of its id: entry ids are the timestamps of their entries.
+     */
+    synchronized long[] getNextEntryIds(long lastEntryId, int length,
+            long after, long before) {
+        int start = start(before);
+        int end = end(after);
+        int i = indexOf(lastEntryId);
+        if (i != -1) {
+            i = i + 1;
+        } else {
+            i = insertionPoint(lastEntryId, lastEntryId);
+        }
+        return copy(Math.max(start, i), end, length);
+    }
+
+    /**
+     * Returns true if the specified entry is in this timeline.
+     */
+    synchronized boolean contains(long entryId) {
+        return indexOf(entryId) != -1;
+    }
+
+    /**
+     * Returns true if the specified entry is in this timeline with the
+     * specified signature value, false if it is not in this timeline or has a
+     * different signature value, or null if its signature value is not known.
+     */
+    synchronized Boolean matchesSignature(long entryId, String signatureValue) {
+        int i = indexOf(entryId);
+        if (i == -1) {
+            return Boolean.FALSE;
+        }
+        if (signatures[i] == UNKNOWN) {
+            return null;
+        }
+        return signatures[i] == hash(signatureValue);
+    }
+
+    /**
+     * Returns a count of changes to this timeline, for use with
+     * setSignature().
+     */
+    synchronized long getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Remembers the signature value of the specified entry, as read when this
+     * timeline had the specified count of changes; ignored if the timeline has
+     * changed since then, or if the entry is not in this timeline or has no
+     * signature.
+     */
+    synchronized void setSignature(long entryId, String signatureValue,
+            long modCount) {
+        if (modCount == this.modCount && signatureValue != null) {
+            int i = indexOf(entryId);
+            if (i != -1) {
+                signatures[i] = hash(signatureValue);
+            }
+        }
+    }
+
+    /**
+     * Adds the specified entry, or moves it if it already exists.
+     */
+    synchronized void put(long entryId, long date) {
+        put(entryId, date, null);
+    }
+
+    /**
+     * Adds the specified entry with the specified signature value, or null if
+     * not known, or moves it if it already exists.
+     */
+    synchronized void put(long entryId, long date, String signatureValue) {
+        remove(entryId);
+        int i = insertionPoint(date, entryId);
+        if (size == ids.length) {
+            int capacity = Math.max(16, size + (size >> 1));
+            long[] newDates = new long[capacity];
+            long[] newIds = new long[capacity];
+            long[] newSignatures = new long[capacity];
+            System.arraycopy(dates, 0, newDates, 0, size);
+            System.arraycopy(ids, 0, newIds, 0, size);
+            System.arraycopy(signatures, 0, newSignatures, 0, size);
+            dates = newDates;
+            ids = newIds;
+            signatures = newSignatures;
+        }
+        System.arraycopy(dates, i, dates, i + 1, size - i);
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        System.arraycopy(signatures, i, signatures, i + 1, size - i);
+        dates[i] = date;
+        ids[i] = entryId;
+        signatures[i] = signatureValue == null ? UNKNOWN
+                : hash(signatureValue);
+        size++;
+        datesById.put(entryId, date);
+    }
+
+    /**
+     * Removes the specified entry, if it exists.
+     */
+    synchronized void remove(long entryId) {
+        modCount++;
+        int i = indexOf(entryId);
+        if (i != -1) {
+            System.arraycopy(dates, i + 1, dates, i, size - i - 1);
+            System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+            System.arraycopy(signatures, i + 1, signatures, i, size - i - 1);
+            size--;
+            datesById.remove(entryId);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the specified string, never UNKNOWN.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == UNKNOWN ? 1 : hash;
+    }
+
+    private long[] copy(int start, int end, int length) {
+        end = Math.min(end, start + length);
+        if (start >= end) {
+            return new long[0];
+        }
+        long[] result = new long[end - start];
+        System.arraycopy(ids, start, result, 0, result.length);
+        return result;
+    }
+
+    private int indexOf(long entryId) {
+        int slot = datesById.find(entryId);
+        if (slot == -1) {
+            return -1;
+        }
+        int i = insertionPoint(datesById.valueAt(slot), entryId);
+        if (i < size && ids[i] == entryId) {
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first entry published before the specified
+     * time, or zero if no restriction.
+     */
+    private int start(long before) {
+        if (before == 0) {
+            return 0;
+        }
+        // first index where date < before
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (dates[mid] >= before) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index following the last entry published after the
+     * specified time, or the size if no restriction.
+     */
+    private int end(long after) {
+        if (after == 0) {
+            return size;
+        }
+        // first index where date <= after
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (dates[mid] > after) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int insertionPoint(long date, long entryId) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(dates[mid], ids[mid], date, entryId) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Orders by date and then id, both descending.
+     */
+    private static int compare(long date1, long id1, long date2, long id2) {
+        if (date1 != date2) {
+            return date1 > date2 ? -1 : 1;
+        }
+        if (id1 != id2) {
+            return id1 > id2 ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Merge sort of the parallel arrays in the range [from, to).
+     */
+    private static void sort(long[] dates, long[] ids, long[] tmpDates,
+            long[] tmpIds, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort(dates, ids, tmpDates, tmpIds, from, mid);
+        sort(dates, ids, tmpDates, tmpIds, mid, to);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            if (compare(dates[i], ids[i], dates[j], ids[j]) <= 0) {
+                tmpDates[k] = dates[i];
+                tmpIds[k++] = ids[i++];
+            } else {
+                tmpDates[k] = dates[j];
+                tmpIds[k++] = ids[j++];
+            }
+        }
+        while (i < mid) {
+            tmpDates[k] = dates[i];
+            tmpIds[k++] = ids[i++];
+        }
+        while (j < to) {
+            tmpDates[k] = dates[j];
+            tmpIds[k++] = ids[j++];
+        }
+        System.arraycopy(tmpDates, from, dates, from, to - from);
+        System.arraycopy(tmpIds, from, ids, from, to - from);
+    }
+
+    /**
+     * Open-addressing map of entry id to publish date with linear probing, so
+     * lookups neither box nor allocate. Removals shift later entries of a
+     * probe sequence back rather than leaving tombstones.
+     */
+    private static class DateIndex {
+
+        private long[] keys;
+        private long[] values;
+        private boolean[] used;
+        private int count;
+
+        DateIndex(int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            allocate(capacity);
+        }
+
+        /**
+         * Returns the slot holding the specified key, or -1 if absent.
+         */
+        int find(long key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; used[i]; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        long valueAt(int slot) {
+            return values[slot];
+        }
+
+        void put(long key, long value) {
+            if ((count + 1) * 2 > keys.length) {
+                long[] oldKeys = keys;
+                long[] oldValues = values;
+                boolean[] oldUsed = used;
+                allocate(keys.length * 2);
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldUsed[i]) {
+                        put(oldKeys[i], oldValues[i]);
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (used[i]) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            used[i] = true;
+            keys[i] = key;
+            values[i] = value;
+            count++;
+        }
+
+        void remove(long key) {
+            int i = find(key);
+            if (i == -1) {
+                return;
+            }
+            int mask = keys.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (!used[j]) {
+                    break;
+                }
+                // leave entries whose home slot lies cyclically in (i, j]
+                int home = mix(keys[j]) & mask;
+                if (i <= j ? (i < home && home <= j)
+                        : (i < home || home <= j)) {
+                    continue;
+                }
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            used[i] = false;
+            count--;
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            values = new long[capacity];
+            used = new boolean[capacity];
+            count = 0;
+        }
+
+        private static int mix(long key) {
+            long hash = key * 0x9e3779b97f4a7c15L;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+}
@@ -30,11 +30,17 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.net.URLConnection;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import com.trsst.Common;
 
@@ -51,17 +57,59 @@ import com.trsst.Common;
 public class FileStorage implements Storage {
 
     public static final String FEED_XML = "feed.xml";
+    public static final String FEED_VALIDATORS = "feed.validators";
     public static final String ENTRY_SUFFIX = ".atom";
     public static final String ENCODING = "UTF-8";
 
+    /**
+     * Directory under the root holding resource contents keyed by digest;
+     * per-entry resource files are hard links into this store.
+     */
+    public static final String BLOB_DIR = "blobs";
+
+    /**
+     * Maximum number of feeds whose timelines are kept in memory.
+     */
+    private static final int MAX_TIMELINES = 1000;
+
+    /**
+     * Locks serializing the loading of a feed's timeline with changes to that
+     * feed's entries, selected by hash of feed id.
+     */
+    private final Object[] feedLocks = new Object[64];
+
+    /**
+     * Locks guarding creation and removal of blobs and the links to them,
+     * selected by digest.
+     */
+    private final Object[] blobLocks = new Object[64];
+
     private File root;
 
+    /**
+     * Loaded timelines by feed id, least recently used evicted first; guarded
+     * by synchronizing on the map itself.
+     */
+    private final Map<String, FeedTimeline> timelines = new LinkedHashMap<String, FeedTimeline>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(
+                Map.Entry<String, FeedTimeline> eldest) {
+            return size() > MAX_TIMELINES;
+        }
+    };
+
     public FileStorage() {
         this(Common.getServerRoot());
     }
 
     public FileStorage(File root) {
         this.root = root;
+        for (int i = 0; i < feedLocks.length; i++) {
+            feedLocks[i] = new Object();
+        }
+        for (int i = 0; i < blobLocks.length; i++) {
+            blobLocks[i] = new Object();
+        }
         System.err.println("File storage serving from: " + root);
     }
 
@@ -103,12 +151,7 @@ public class FileStorage implements Storage {
 
     public int getEntryCountForFeedId(String feedId, Date after, Date before,
             String query, String[] mentions, String[] tags, String verb) {
-        File[] files = new File(root, feedId).listFiles(new FileFilter() {
-            public boolean accept(File file) {
-                return file.getName().toLowerCase().endsWith(ENTRY_SUFFIX);
-            }
-        });
-        return files.length;
+        return getTimeline(feedId).count(getTime(after), getTime(before));
     }
 
     public long[] getEntryIdsForFeedId(String feedId, int start, int length,
@@ -118,17 +161,29 @@ public class FileStorage implements Storage {
             throw new IllegalArgumentException("Invalid range: start: " + start
                     + " : length: " + length);
         }
-        long[] all = getEntryIdsForFeedId(feedId, after, before);
-        if (start >= all.length) {
-            return new long[0];
-        }
 
         // TODO: implement query/tag/mention/verb filter
 
-        int end = Math.min(start + length, all.length);
-        long[] result = new long[end - start];
-        System.arraycopy(all, start, result, 0, result.length);
-        return result;
+        return getTimeline(feedId).getEntryIds(start, length, getTime(after),
+                getTime(before));
+    }
+
+    public long[] getNextEntryIdsForFeedId(String feedId, long lastEntryId,
+            int length, Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb) {
+        if (length < 1) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        if (query != null || mentions != null || tags != null || verb != null) {
+            throw new IllegalArgumentException(
+                    "Filtered queries are not supported with a cursor");
+        }
+        return getTimeline(feedId).getNextEntryIds(lastEntryId, length,
+                getTime(after), getTime(before));
+    }
+
+    private static long getTime(Date date) {
+        return date != null ? date.getTime() : 0;
     }
 
     public String readFeed(String feedId) throws FileNotFoundException,
@@ -145,11 +200,61 @@ public class FileStorage implements Storage {
         }
     }
 
+    public String[] readFeedValidators(String feedId) throws IOException {
+        File file = getValidatorsFileForFeedId(feedId);
+        if (!file.exists()) {
+            return null;
+        }
+        // one header value per line; empty if none
+        String[] lines = readStringFromFile(file).split("\n", -1);
+        String[] result = new String[2];
+        for (int i = 0; i < result.length && i < lines.length; i++) {
+            if (lines[i].length() > 0) {
+                result[i] = lines[i];
+            }
+        }
+        return result;
+    }
+
+    public void updateFeedValidators(String feedId, String entityTag,
+            String lastModified) throws IOException {
+        File file = getValidatorsFileForFeedId(feedId);
+        if (entityTag == null && lastModified == null) {
+            file.delete();
+        } else {
+            writeStringToFile((entityTag != null ? entityTag : "") + '\n'
+                    + (lastModified != null ? lastModified : ""), file);
+        }
+    }
+
     public String readEntry(String feedId, long entryId)
             throws FileNotFoundException, IOException {
         return readStringFromFile(getEntryFileForFeedEntry(feedId, entryId));
     }
 
+    public boolean containsEntry(String feedId, long entryId) {
+        return getTimeline(feedId).contains(entryId);
+    }
+
+    public boolean containsEntry(String feedId, long entryId,
+            String signatureValue) throws IOException {
+        FeedTimeline timeline = getTimeline(feedId);
+        Boolean matches = timeline.matchesSignature(entryId, signatureValue);
+        if (matches != null) {
+            return matches;
+        }
+        // loaded from the directory: read the signature once
+        long modCount = timeline.getModCount();
+        String stored;
+        try {
+            stored = Common.getSignatureValue(readEntry(feedId, entryId));
+        } catch (FileNotFoundException e) {
+            return false; // deleted in the meantime
+        }
+        timeline.setSignature(entryId, stored, modCount);
+        return signatureValue.equals(stored);
+    }
+
     public void updateEntry(String feedId, long entryId, Date publishDate,
             String entry) throws IOException {
         File file = getEntryFileForFeedEntry(feedId, entryId);
@@ -157,6 +262,24 @@ public class FileStorage implements Storage {
         if (publishDate != null) {
             file.setLastModified(publishDate.getTime());
         }
+        entryChanged(feedId, entryId, file, entry);
+    }
+
+    public void updateEntries(String feedId, List<EntryRecord> entries)
+            throws IOException {
+        File file = null;
+        for (EntryRecord entry : entries) {
+            file = getEntryFileForFeedEntry(feedId, entry.getEntryId());
+            writeStringToFile(entry.getContent(), file);
+            if (entry.getPublishDate() != null) {
+                file.setLastModified(entry.getPublishDate().getTime());
+            }
+            entryChanged(feedId, entry.getEntryId(), file, entry.getContent());
+        }
+        if (file != null) {
+            // all entries share the feed directory: sync it once
+            syncDirectory(file.getParentFile());
+        }
     }
 
     public void deleteEntry(String feedId, long entryId) throws IOException {
@@ -164,6 +287,88 @@ public class FileStorage implements Storage {
         if (file.exists()) {
             file.delete();
         }
+        entryChanged(feedId, entryId, file, null);
+        deleteFeedEntryResources(feedId, entryId);
+    }
+
+    /**
+     * Returns the timeline for the specified feed, building it from the feed
+     * directory if not already loaded.
+     */
+    private FeedTimeline getTimeline(String feedId) {
+        FeedTimeline timeline;
+        synchronized (timelines) {
+            timeline = timelines.get(feedId);
+        }
+        if (timeline == null) {
+            // list the directory holding only this feed's lock
+            synchronized (getFeedLock(feedId)) {
+                synchronized (timelines) {
+                    timeline = timelines.get(feedId);
+                }
+                if (timeline == null) {
+                    timeline = loadTimeline(feedId);
+                    synchronized (timelines) {
+                        timelines.put(feedId, timeline);
+                    }
+                }
+            }
+        }
+        return timeline;
+    }
+
+    /**
+     * Updates the loaded timeline, if any, for the specified feed to match
+     * the specified entry file and its contents, or null if deleted;
+     * timelines that are not loaded will be built from the directory when
+     * next needed.
+     */
+    private void entryChanged(String feedId, long entryId, File file,
+            String content) {
+        synchronized (getFeedLock(feedId)) {
+            FeedTimeline timeline;
+            synchronized (timelines) {
+                timeline = timelines.get(feedId);
+            }
+            if (timeline != null) {
+                long lastModified = file.lastModified();
+                if (lastModified != 0) {
+                    timeline.put(entryId, lastModified,
+                            content != null ? Common
+                                    .getSignatureValue(content) : null);
+                } else {
+                    timeline.remove(entryId);
+                }
+            }
+        }
+    }
+
+    private Object getFeedLock(String feedId) {
+        return feedLocks[(feedId.hashCode() & 0x7fffffff) % feedLocks.length];
+    }
+
+    private FeedTimeline loadTimeline(String feedId) {
+        File[] files = new File(root, Common.encodeURL(feedId))
+                .listFiles(new FileFilter() {
+                    public boolean accept(File file) {
+                        return file.getName().toLowerCase()
+                                .endsWith(ENTRY_SUFFIX);
+                    }
+                });
+        if (files == null) {
+            files = new File[0];
+        }
+        String name;
+        int suffix = ENTRY_SUFFIX.length();
+        long[] dates = new long[files.length];
+        long[] ids = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            name = files[i].getName();
+            dates[i] = files[i].lastModified();
+            ids[i] = Long.parseLong(
+                    name.substring(0, name.length() - suffix), 16);
+        }
+        return new FeedTimeline(dates, ids);
     }
 
     public String readFeedEntryResourceType(String feedId, long entryId,
@@ -178,16 +383,23 @@ public class FileStorage implements Storage {
                 getResourceFileForFeedEntry(feedId, entryId, resourceId)));
     }
 
+    public ResourceDescriptor readFeedEntryResourceDescriptor(String feedId,
+            long entryId, String resourceId) throws IOException {
+        File file = getResourceFileForFeedEntry(feedId, entryId, resourceId);
+        return ResourceDescriptor.forFile(file, getMimeTypeForFile(file));
+    }
+
     public void updateFeedEntryResource(String feedId, long entryId,
             String resourceId, String mimetype, Date publishDate, byte[] data)
             throws IOException {
-        File file = getResourceFileForFeedEntry(feedId, entryId, resourceId);
+        File blobs = new File(root, BLOB_DIR);
+        blobs.mkdirs();
+        File tmp = File.createTempFile("blob", ".tmp", blobs);
         OutputStream output = new BufferedOutputStream(new FileOutputStream(
-                file));
+                tmp));
         try {
             output.write(data, 0, data.length);
             output.flush();
-            System.err.println("wrote: " + file.getAbsolutePath());
         } finally {
             try {
                 output.close();
@@ -195,54 +407,180 @@ public class FileStorage implements Storage {
                 // suppress any futher error on closing
             }
         }
+        updateFeedEntryResource(feedId, entryId, resourceId, mimetype,
+                publishDate, tmp, Common.ripemd160(data));
+    }
+
+    public void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimetype, Date publishDate, File data,
+            byte[] digest) throws IOException {
+        File file = getResourceFileForFeedEntry(feedId, entryId, resourceId);
+        try {
+            if (digest == null) {
+                digest = digest(data);
+            }
+            if (file.exists()) {
+                deleteResourceFile(file);
+            }
+            file.getParentFile().mkdirs();
+            synchronized (getBlobLock(digest)) {
+                File blob = getBlobFile(digest);
+                if (!blob.exists()) {
+                    blob.getParentFile().mkdirs();
+                    moveIntoPlace(data, blob);
+                }
+                if (!linkToBlob(file, blob)) {
+                    // keep a blob only while resource files link to it
+                    if (getLinkCount(blob) == 1) {
+                        moveIntoPlace(blob, file);
+                    } else {
+                        Files.copy(blob.toPath(), file.toPath());
+                    }
+                }
+                System.err.println("wrote: " + file.getAbsolutePath());
+            }
+        } finally {
+            // no-op if moved into place
+            data.delete();
+        }
         if (publishDate != null) {
             file.setLastModified(publishDate.getTime());
         }
     }
 
+    /**
+     * Moves the specified file to the specified location, atomically where
+     * supported; otherwise copies to a temporary file beside the destination
+     * and then renames it, so the destination never appears partly written.
+     */
+    private static void moveIntoPlace(File source, File target)
+            throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // e.g. on a different file system
+            File tmp = File.createTempFile("blob", ".tmp",
+                    target.getParentFile());
+            Files.copy(source.toPath(), tmp.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Returns the ripemd160 digest of the contents of the specified file.
+     */
+    private static byte[] digest(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return Common.ripemd160(input);
+        } finally {
+            input.close();
+        }
+    }
+
     public void deleteFeedEntryResource(String feedId, long entryId,
-            String resourceId) {
+            String resourceId) throws IOException {
         File file = getResourceFileForFeedEntry(feedId, entryId, resourceId);
         if (file.exists()) {
-            file.delete();
+            deleteResourceFile(file);
         }
     }
 
-    private static final String getMimeTypeForFile(File file) {
-        return URLConnection.getFileNameMap().getContentTypeFor(file.getName());
+    /**
+     * Deletes all resources for the specified entry.
+     */
+    void deleteFeedEntryResources(String feedId, long entryId)
+            throws IOException {
+        final String prefix = Long.toHexString(entryId) + '-';
+        File[] files = new File(root, Common.encodeURL(feedId))
+                .listFiles(new FileFilter() {
+                    public boolean accept(File file) {
+                        return file.getName().startsWith(prefix);
+                    }
+                });
+        if (files != null) {
+            for (File file : files) {
+                deleteResourceFile(file);
+            }
+        }
     }
 
-    private long[] getEntryIdsForFeedId(String feedId, Date after, Date before) {
-        feedId = Common.encodeURL(feedId);
-        final long afterTime = after != null ? after.getTime() : 0;
-        final long beforeTime = before != null ? before.getTime() : 0;
-        File[] files = new File(root, feedId).listFiles(new FileFilter() {
-            public boolean accept(File file) {
-                if ((file.getName().toLowerCase().endsWith(ENTRY_SUFFIX))
-                        && (afterTime == 0 || file.lastModified() > afterTime)
-                        && (beforeTime == 0 || file.lastModified() < beforeTime)) {
-                    return true;
-                }
-                return false;
-            }
-        });
-        Arrays.sort(files, new Comparator<File>() {
-            public int compare(File o1, File o2) {
-                // System.out.println( new Date(o1.lastModified() ) + " : " +
-                // new Date(o2.lastModified()) );
-                return o1.lastModified() > o2.lastModified() ? -1 : o1
-                        .lastModified() < o2.lastModified() ? 1 : 0;
+    /**
+     * Returns the location in the shared blob store of the content with the
+     * specified digest.
+     */
+    private File getBlobFile(byte[] digest) {
+        String hex = Common.toHex(digest);
+        return new File(new File(new File(root, BLOB_DIR), hex.substring(0, 2)),
+                hex);
+    }
+
+    private Object getBlobLock(byte[] digest) {
+        return blobLocks[(digest[0] & 0xff) % blobLocks.length];
+    }
+
+    /**
+     * Makes the specified resource file a hard link to the specified blob,
+     * returning false without creating the file if the file system does not
+     * support hard links or does not report link counts, which are needed to
+     * know when the blob is no longer referenced.
+     */
+    private static boolean linkToBlob(File file, File blob) throws IOException {
+        try {
+            Files.createLink(file.toPath(), blob.toPath());
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (FileSystemException e) {
+            // e.g. too many links or cross-device
+            log.debug("Could not link to blob: " + blob + " : " + e);
+            return false;
+        }
+        if (getLinkCount(blob) < 2) {
+            file.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the specified resource file and, if it was linked to a blob,
+     * deletes the blob once no other resource file refers to it. A blob's
+     * reference count is its link count less one for the blob itself.
+     */
+    private void deleteResourceFile(File file) throws IOException {
+        if (getLinkCount(file) < 2) {
+            // not linked to a blob
+            file.delete();
+            return;
+        }
+        byte[] digest = digest(file);
+        synchronized (getBlobLock(digest)) {
+            file.delete();
+            File blob = getBlobFile(digest);
+            if (blob.exists() && getLinkCount(blob) == 1) {
+                blob.delete();
             }
-        });
-        String name;
-        int suffix = ENTRY_SUFFIX.length();
-        long[] result = new long[files.length];
-        for (int i = 0; i < files.length; i++) {
-            name = files[i].getName();
-            result[i] = Long.parseLong(
-                    name.substring(0, name.length() - suffix), 16);
         }
-        return result;
+    }
+
+    private static int getLinkCount(File file) {
+        try {
+            return ((Number) Files.getAttribute(file.toPath(), "unix:nlink"))
+                    .intValue();
+        } catch (UnsupportedOperationException e) {
+            return 1; // no hard links on this platform
+        } catch (IllegalArgumentException e) {
+            return 1; // no hard links on this platform
+        } catch (IOException e) {
+            return 1;
+        }
+    }
+
+    private static final String getMimeTypeForFile(File file) {
+        return URLConnection.getFileNameMap().getContentTypeFor(file.getName());
     }
 
     private static final String readStringFromFile(File file)
@@ -292,11 +630,40 @@ public class FileStorage implements Storage {
         }
     }
 
+    /**
+     * Flushes directory entries to disk so newly created files survive a
+     * crash. Not all platforms allow opening a directory: if unsupported, we
+     * settle for whatever the filesystem already guarantees.
+     */
+    private static final void syncDirectory(File directory) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(directory.toPath(),
+                    StandardOpenOption.READ);
+            channel.force(true);
+        } catch (IOException ioe) {
+            log.debug("Could not sync directory: " + directory, ioe);
+        } finally {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
+    }
+
     public File getFeedFileForFeedId(String feedId) {
         feedId = Common.encodeURL(feedId);
         return new File(new File(root, feedId), FEED_XML);
     }
 
+    public File getValidatorsFileForFeedId(String feedId) {
+        feedId = Common.encodeURL(feedId);
+        return new File(new File(root, feedId), FEED_VALIDATORS);
+    }
+
     public File getEntryFileForFeedEntry(String feedId, long entryId) {
         feedId = Common.encodeURL(feedId);
         return new File(new File(root, feedId),
@@ -310,4 +677,7 @@ public class FileStorage implements Storage {
                 Long.toHexString(entryId) + '-' + resourceid);
     }
 
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(FileStorage.class);
+
 }
\ No newline at end of file
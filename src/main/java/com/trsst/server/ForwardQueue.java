@@ -0,0 +1,587 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.abdera.Abdera;
+import org.apache.abdera.model.Document;
+import org.apache.abdera.model.Entry;
+import org.apache.abdera.model.Feed;
+import org.apache.abdera.util.MimeTypeHelper;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import com.trsst.HttpPool;
+
+/**
+ * Forwards posted entries to the home servers of their feeds in the
+ * background, so that posting to us costs only local ingest.
+ *
+ * Each forward is spooled to a directory before it is queued, and spooled
+ * forwards are queued again when the queue is created, so pending forwards
+ * survive a restart. Forwards are grouped by target url: a forward whose
+ * entries are all already pending for its target is dropped, and pending atom
+ * posts for the same target are combined into a single post of the newest
+ * feed with all their entries. Multipart posts are sent as they were
+ * received.
+ *
+ * A target that fails is retried with exponential backoff; after the maximum
+ * number of attempts its pending forwards are discarded. Targets that reject
+ * a post with a client error are not retried.
+ *
+ * The number of workers and the maximum number of attempts are configured
+ * with the com.trsst.server.forward.threads and
+ * com.trsst.server.forward.attempts properties.
+ *
+ * @author mpowers
+ */
+public class ForwardQueue {
+
+    /**
+     * Delay before sending, so forwards arriving together are combined.
+     */
+    private static final long BATCH_DELAY = 500;
+    private static final long MIN_RETRY_DELAY = 5 * 1000;
+    private static final long MAX_RETRY_DELAY = 60 * 60 * 1000;
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TASK_SUFFIX = ".task";
+
+    private final File directory;
+    private final int maxAttempts;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<String, Target> targets;
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong forwardedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * A spooled post of one or more entries to a target.
+     */
+    private static class Task {
+        File task;
+        File body;
+        String url;
+        String contentType;
+        String feedId;
+        long[] entryIds;
+    }
+
+    /**
+     * The pending posts for a target url; a target is drained by only one
+     * worker at a time.
+     */
+    private static class Target {
+        final String url;
+        final List<Task> tasks = new LinkedList<Task>();
+        final Set<String> keys = new HashSet<String>();
+        boolean scheduled;
+        int attempts;
+
+        Target(String url) {
+            this.url = url;
+        }
+    }
+
+    /**
+     * Creates a queue spooling to the specified directory configured from
+     * system properties, and queues any forwards already spooled there.
+     */
+    public ForwardQueue(File directory) {
+        this(directory, Integer.getInteger(
+                "com.trsst.server.forward.threads", 2), Integer.getInteger(
+                "com.trsst.server.forward.attempts", 12));
+    }
+
+    /**
+     * @param directory
+     *            the directory in which to spool pending forwards.
+     * @param threads
+     *            the number of worker threads.
+     * @param maxAttempts
+     *            the number of failed attempts after which a target's pending
+     *            forwards are discarded.
+     */
+    public ForwardQueue(File directory, int threads, int maxAttempts) {
+        this.directory = directory;
+        this.maxAttempts = maxAttempts;
+        this.targets = new HashMap<String, Target>();
+        this.executor = new ScheduledThreadPoolExecutor(threads,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ForwardQueue "
+                                + count.incrementAndGet());
+                        // never prevent exit
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        directory.mkdirs();
+        resume();
+    }
+
+    /**
+     * Queues the specified post for forwarding.
+     *
+     * @param url
+     *            the target url.
+     * @param contentType
+     *            the content type of the post.
+     * @param feedId
+     *            the feed whose entries are posted.
+     * @param entryIds
+     *            the ids of the posted entries.
+     * @param body
+     *            the body of the post.
+     * @throws IOException
+     *             if the post could not be spooled.
+     */
+    public void forward(String url, String contentType, String feedId,
+            long[] entryIds, byte[] body) throws IOException {
+        File file = createBodyFile();
+        try {
+            Files.write(file.toPath(), body);
+            add(writeTask(file, url, contentType, feedId, entryIds));
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Queues the specified post for forwarding, taking ownership of the file
+     * containing its body, which is moved into the spool directory.
+     *
+     * @see #forward(String, String, String, long[], byte[])
+     */
+    public void forward(String url, String contentType, String feedId,
+            long[] entryIds, File body) throws IOException {
+        File file = createBodyFile();
+        try {
+            Files.move(body.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            add(writeTask(file, url, contentType, feedId, entryIds));
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    private File createBodyFile() throws IOException {
+        return File.createTempFile("forward", BODY_SUFFIX, directory);
+    }
+
+    private Task writeTask(File body, String url, String contentType,
+            String feedId, long[] entryIds) throws IOException {
+        Task result = new Task();
+        result.body = body;
+        result.url = url;
+        result.contentType = contentType;
+        result.feedId = feedId;
+        result.entryIds = entryIds;
+        String name = body.getName();
+        result.task = new File(directory, name.substring(0, name.length()
+                - BODY_SUFFIX.length())
+                + TASK_SUFFIX);
+
+        StringBuilder ids = new StringBuilder();
+        for (long id : entryIds) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(Long.toHexString(id));
+        }
+        Properties properties = new Properties();
+        properties.setProperty("url", url);
+        properties.setProperty("type", contentType);
+        properties.setProperty("feed", feedId);
+        properties.setProperty("entries", ids.toString());
+        properties.setProperty("body", name);
+
+        // write then rename so a task is never seen half written
+        File temp = new File(directory, result.task.getName() + ".tmp");
+        OutputStream output = new FileOutputStream(temp);
+        try {
+            properties.store(output, null);
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(result.task)) {
+            temp.delete();
+            throw new IOException("Could not write task: " + result.task);
+        }
+        return result;
+    }
+
+    private Task readTask(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream input = new FileInputStream(file);
+        try {
+            properties.load(input);
+        } finally {
+            input.close();
+        }
+        Task result = new Task();
+        result.task = file;
+        result.body = new File(directory, properties.getProperty("body", ""));
+        result.url = properties.getProperty("url");
+        result.contentType = properties.getProperty("type");
+        result.feedId = properties.getProperty("feed");
+        String entries = properties.getProperty("entries", "");
+        if (result.url == null || result.contentType == null
+                || result.feedId == null || !result.body.isFile()) {
+            throw new IOException("Incomplete task: " + file);
+        }
+        if (entries.length() == 0) {
+            result.entryIds = new long[0];
+        } else {
+            String[] ids = entries.split(",");
+            result.entryIds = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                result.entryIds[i] = Long.parseLong(ids[i], 16);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Queues forwards left in the spool directory, and removes any partial
+     * writes.
+     */
+    private void resume() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<String> bodies = new HashSet<String>();
+        for (File file : files) {
+            if (file.getName().endsWith(TASK_SUFFIX)) {
+                try {
+                    Task task = readTask(file);
+                    bodies.add(task.body.getName());
+                    add(task);
+                } catch (Exception e) {
+                    log.warn("Discarding unreadable forward: " + file, e);
+                    file.delete();
+                }
+            }
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(TASK_SUFFIX)
+                    && !bodies.contains(file.getName())) {
+                file.delete();
+            }
+        }
+        if (!bodies.isEmpty()) {
+            log.info("Resuming forwards: " + bodies.size());
+        }
+    }
+
+    private static String getKey(String feedId, long entryId) {
+        return feedId + ':' + Long.toHexString(entryId);
+    }
+
+    private void add(Task task) {
+        synchronized (targets) {
+            Target target = targets.get(task.url);
+            if (target == null) {
+                target = new Target(task.url);
+                targets.put(task.url, target);
+            }
+            boolean pending = task.entryIds.length > 0;
+            for (long id : task.entryIds) {
+                if (!target.keys.contains(getKey(task.feedId, id))) {
+                    pending = false;
+                }
+            }
+            if (pending) {
+                // every entry is already on its way
+                log.debug("Already forwarding: " + task.url);
+                coalescedCount.incrementAndGet();
+                delete(task);
+                return;
+            }
+            for (long id : task.entryIds) {
+                target.keys.add(getKey(task.feedId, id));
+            }
+            target.tasks.add(task);
+            pendingCount.incrementAndGet();
+            if (!target.scheduled) {
+                target.scheduled = true;
+                schedule(target, BATCH_DELAY);
+            }
+        }
+    }
+
+    private void schedule(final Target target, long delay) {
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    drain(target);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down: remains spooled for next time
+            target.scheduled = false;
+        }
+    }
+
+    /**
+     * Sends all pending posts for the specified target.
+     */
+    private void drain(Target target) {
+        List<Task> atom = new LinkedList<Task>();
+        List<Task> other = new LinkedList<Task>();
+        synchronized (targets) {
+            for (Task task : target.tasks) {
+                if (MimeTypeHelper.isAtom(task.contentType)) {
+                    atom.add(task);
+                } else {
+                    other.add(task);
+                }
+            }
+        }
+
+        List<Task> done = new LinkedList<Task>();
+        boolean retry = false;
+        if (!atom.isEmpty()) {
+            RequestEntity content = null;
+            try {
+                content = combine(atom);
+            } catch (Exception e) {
+                log.error("Discarding unreadable forwards: " + target.url, e);
+                failedCount.addAndGet(atom.size());
+                done.addAll(atom);
+            }
+            if (content != null) {
+                if (post(target.url, content, atom.size())) {
+                    done.addAll(atom);
+                } else {
+                    retry = true;
+                }
+            }
+        }
+        for (Task task : other) {
+            if (retry) {
+                break; // target is down: try later
+            }
+            if (post(target.url, new FileRequestEntity(task.body,
+                    task.contentType), 1)) {
+                done.add(task);
+            } else {
+                retry = true;
+            }
+        }
+
+        synchronized (targets) {
+            for (Task task : done) {
+                target.tasks.remove(task);
+                pendingCount.decrementAndGet();
+                delete(task);
+            }
+            if (retry && ++target.attempts >= maxAttempts) {
+                log.error("Giving up forwarding to: " + target.url + " : "
+                        + target.tasks.size());
+                for (Task task : target.tasks) {
+                    pendingCount.decrementAndGet();
+                    failedCount.incrementAndGet();
+                    delete(task);
+                }
+                target.tasks.clear();
+                retry = false;
+            }
+            target.keys.clear();
+            for (Task task : target.tasks) {
+                for (long id : task.entryIds) {
+                    target.keys.add(getKey(task.feedId, id));
+                }
+            }
+            if (retry) {
+                long delay = MIN_RETRY_DELAY << Math.min(target.attempts, 20);
+                delay = Math.min(MAX_RETRY_DELAY, delay);
+                log.debug("Retrying forward in " + delay + "ms: " + target.url);
+                schedule(target, delay);
+            } else {
+                target.attempts = 0;
+                if (target.tasks.isEmpty()) {
+                    target.scheduled = false;
+                    targets.remove(target.url);
+                } else {
+                    // arrived while we were sending
+                    schedule(target, BATCH_DELAY);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a single post of the newest of the specified feeds containing
+     * the entries of all of them. Feed signatures exclude entries, and each
+     * entry is signed separately, so the combined feed still verifies.
+     */
+    private RequestEntity combine(List<Task> tasks) throws IOException {
+        Task first = tasks.get(0);
+        if (tasks.size() == 1) {
+            return new FileRequestEntity(first.body, first.contentType);
+        }
+        Feed newest = null;
+        Set<String> ids = new HashSet<String>();
+        List<Entry> entries = new LinkedList<Entry>();
+        for (Task task : tasks) {
+            InputStream input = new BufferedInputStream(new FileInputStream(
+                    task.body));
+            Feed feed;
+            try {
+                Document<Feed> document = Abdera.getInstance().getParser()
+                        .parse(input);
+                document.complete();
+                feed = document.getRoot();
+            } finally {
+                input.close();
+            }
+            if (newest == null
+                    || (feed.getUpdated() != null && newest.getUpdated() != null && feed
+                            .getUpdated().after(newest.getUpdated()))) {
+                newest = feed;
+            }
+            for (Entry entry : feed.getEntries()) {
+                if (ids.add(entry.getId().toString())) {
+                    entries.add(entry);
+                }
+            }
+        }
+        Feed result = (Feed) newest.clone();
+        for (Entry entry : result.getEntries()) {
+            entry.discard();
+        }
+        for (Entry entry : entries) {
+            result.addEntry((Entry) entry.clone());
+        }
+        return new ByteArrayRequestEntity(result.toString().getBytes("UTF-8"),
+                first.contentType);
+    }
+
+    /**
+     * Posts the specified content containing the specified number of queued
+     * posts to the specified url, returning false if it should be retried.
+     */
+    private boolean post(String url, RequestEntity content, int count) {
+        PostMethod method = new PostMethod(url);
+        try {
+            method.setRequestEntity(content);
+            int status = HttpPool.getHttpClient().executeMethod(method);
+            if (status < 300) {
+                forwardedCount.addAndGet(count);
+                return true;
+            }
+            if (status >= 400 && status < 500 && status != 408
+                    && status != 429) {
+                // they will never accept it
+                log.warn("Forward rejected: " + status + " : " + url);
+                failedCount.addAndGet(count);
+                return true;
+            }
+            log.warn("Unexpected response while forwarding: " + status
+                    + " : " + url);
+        } catch (IOException ioe) {
+            log.warn("Unexpected error while forwarding: " + url + " : "
+                    + ioe);
+        } finally {
+            method.releaseConnection();
+        }
+        return false;
+    }
+
+    private static void delete(Task task) {
+        task.task.delete();
+        task.body.delete();
+    }
+
+    /**
+     * Returns the number of posts waiting to be forwarded.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Returns the number of posts forwarded.
+     */
+    public long getForwardedCount() {
+        return forwardedCount.get();
+    }
+
+    /**
+     * Returns the number of posts rejected or discarded after retrying.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Returns the number of posts dropped because their entries were already
+     * pending.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Stops forwarding; pending forwards remain spooled for the next queue
+     * created on the same directory.
+     */
+    public void shutdown() {
+        log.info("Shutting down: " + this);
+        executor.shutdownNow();
+    }
+
+    public String toString() {
+        return "ForwardQueue[pending=" + getPendingCount() + ", forwarded="
+                + getForwardedCount() + ", failed=" + getFailedCount()
+                + ", coalesced=" + getCoalescedCount() + "]";
+    }
+
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(ForwardQueue.class);
+}
@@ -4,12 +4,21 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.xml.namespace.QName;
 
@@ -22,30 +31,45 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TrackingIndexWriter;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.queryparser.flexible.standard.StandardQueryParser;
 import org.apache.lucene.queryparser.flexible.standard.config.StandardQueryConfigHandler;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.NumericRangeFilter;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -80,13 +104,79 @@ public class LuceneStorage implements Storage {
      */
     private Storage persistentStorage;
 
+    /**
+     * Maximum time in milliseconds that a change may remain invisible to
+     * searches; configurable with the "com.trsst.server.index.maxStale"
+     * property.
+     */
+    public static final long DEFAULT_MAX_STALE = 1000;
+
+    /**
+     * Interval in milliseconds between durable commits of the index;
+     * configurable with the "com.trsst.server.index.commitInterval" property.
+     */
+    public static final long DEFAULT_COMMIT_INTERVAL = 10000;
+
     /*
      * Lucene readers/writers are thread-safe and shared instances are
      * recommended.
      */
 
+    /*
+     * Entry ids are the update timestamps, so sorting by the id column sorts
+     * by most recent update.
+     */
+    private static final Sort SORT_BY_UPDATED = new Sort(new SortField("id",
+            SortField.Type.LONG, true));
+
+    private static final Set<String> ENTRY_FIELDS = Collections
+            .singleton("entry");
+
+    /**
+     * Maximum number of feeds whose entry counts are cached.
+     */
+    private static final int MAX_CACHED_FEEDS = 1000;
+
+    /**
+     * Maximum number of distinct filtered counts cached per feed.
+     */
+    private static final int MAX_FILTERED_COUNTS = 32;
+
+    /**
+     * Entry counts by feed id, least recently used evicted first; guarded by
+     * synchronizing on the map itself.
+     */
+    private final Map<String, FeedCounts> countCache = new LinkedHashMap<String, FeedCounts>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, FeedCounts> eldest) {
+            return size() > MAX_CACHED_FEEDS;
+        }
+    };
+
+    /**
+     * Delegate storage by feed id, least recently used evicted first; guarded
+     * by synchronizing on the map itself. Deciding whether a feed is managed
+     * lists the client root, so the decision is made once and refreshed only
+     * when the feed itself is updated.
+     */
+    private final Map<String, Storage> storageCache = new LinkedHashMap<String, Storage>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Storage> eldest) {
+            return size() > MAX_CACHED_FEEDS;
+        }
+    };
+
+    /**
+     * Number of writes in progress by feed id; guarded by synchronizing on
+     * countCache.
+     */
+    private final Map<String, Integer> activeWrites = new HashMap<String, Integer>();
+
     private IndexWriter writer;
-    private IndexReader reader;
+    private TrackingIndexWriter trackingWriter;
+    private SearcherManager searcherManager;
+    private ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+    private Timer commitTimer;
     private Analyzer analyzer;
 
     /**
@@ -131,11 +221,122 @@ public class LuceneStorage implements Storage {
         iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
         writer = new IndexWriter(dir, iwc);
         writer.commit();
-        refreshReader();
+
+        // changes become searchable via near-real-time reopens
+        // and are only made durable on a separate, slower schedule
+        trackingWriter = new TrackingIndexWriter(writer);
+        searcherManager = new SearcherManager(writer, true,
+                new SearcherFactory() {
+                    public IndexSearcher newSearcher(IndexReader reader)
+                            throws IOException {
+                        // warm the sort field before the searcher is shared
+                        IndexSearcher searcher = new IndexSearcher(reader);
+                        searcher.search(new MatchAllDocsQuery(), null, 1,
+                                SORT_BY_UPDATED);
+                        return searcher;
+                    }
+                });
+        migrate();
+
+        double maxStale = getLongProperty("com.trsst.server.index.maxStale",
+                DEFAULT_MAX_STALE) / 1000.0;
+        reopenThread = new ControlledRealTimeReopenThread<IndexSearcher>(
+                trackingWriter, searcherManager, maxStale, Math.min(maxStale,
+                        0.025));
+        reopenThread.setName("LuceneStorage reopen");
+        reopenThread.setDaemon(true);
+        reopenThread.start();
+
+        long commitInterval = getLongProperty(
+                "com.trsst.server.index.commitInterval",
+                DEFAULT_COMMIT_INTERVAL);
+        commitTimer = new Timer("LuceneStorage commit", true);
+        commitTimer.schedule(new TimerTask() {
+            public void run() {
+                commit();
+            }
+        }, commitInterval, commitInterval);
+
+        // commit any pending changes on exit
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                close();
+            }
+        });
     }
 
-    private void refreshReader() throws IOException {
-        reader = DirectoryReader.open(writer, true);
+    private static long getLongProperty(String name, long defaultValue) {
+        String value = System.getProperty(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Makes all changes to the index durable, if any are pending.
+     */
+    public void commit() {
+        try {
+            if (writer.hasUncommittedChanges()) {
+                writer.commit();
+            }
+        } catch (Throwable t) {
+            log.error("Unexpected error while committing index", t);
+        }
+    }
+
+    /**
+     * Stops background refreshes, commits any pending changes, and releases
+     * the index. This storage is unusable after calling this method.
+     */
+    public synchronized void close() {
+        if (commitTimer == null) {
+            return; // already closed
+        }
+        commitTimer.cancel();
+        commitTimer = null;
+        reopenThread.close();
+        try {
+            searcherManager.close();
+            writer.close(); // commits pending changes
+        } catch (Throwable t) {
+            log.error("Unexpected error while closing index", t);
+        }
+    }
+
+    /**
+     * Returns the generation of the most recent change to the index. Callers
+     * needing to read their own writes can pass this value to
+     * waitForGeneration().
+     */
+    public long getGeneration() {
+        return trackingWriter.getGeneration();
+    }
+
+    /**
+     * Blocks until all changes up to and including the specified generation
+     * are visible to searches.
+     * 
+     * @param generation
+     *            a value previously obtained from getGeneration().
+     * @throws InterruptedIOException
+     *             if interrupted while waiting.
+     */
+    public void waitForGeneration(long generation)
+            throws InterruptedIOException {
+        try {
+            reopenThread.waitForGeneration(generation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for index generation: "
+                            + generation);
+        }
     }
 
     /**
@@ -168,10 +369,25 @@ public class LuceneStorage implements Storage {
         if (persistentStorage == null) {
             return cacheStorage;
         }
-        if (isManaged(feedId)) {
-            return persistentStorage;
+        Storage result;
+        synchronized (storageCache) {
+            result = storageCache.get(feedId);
         }
-        return cacheStorage;
+        if (result == null) {
+            result = resolveStorage(feedId);
+        }
+        return result;
+    }
+
+    private Storage resolveStorage(String feedId) {
+        if (persistentStorage == null) {
+            return cacheStorage;
+        }
+        Storage result = isManaged(feedId) ? persistentStorage : cacheStorage;
+        synchronized (storageCache) {
+            storageCache.put(feedId, result);
+        }
+        return result;
     }
 
     /**
@@ -201,11 +417,28 @@ public class LuceneStorage implements Storage {
 
     public int getEntryCountForFeedId(String feedId, Date after, Date before,
             String search, String[] mentions, String[] tags, String verb) {
+        String key = null;
+        if (feedId != null) {
+            key = getCountKey(after, before, search, mentions, tags, verb);
+            Integer cached = getCachedCount(feedId, key);
+            if (cached != null) {
+                return cached.intValue();
+            }
+        }
         try {
             Filter filter = buildRangeFilter(after, before);
             Query query = buildTextQuery(feedId, search, mentions, tags, verb);
             CountCollector collector = new CountCollector();
-            new IndexSearcher(reader).search(query, filter, collector);
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                searcher.search(query, filter, collector);
+                if (key != null) {
+                    putCachedCount(feedId, key, collector.getCount(),
+                            (DirectoryReader) searcher.getIndexReader());
+                }
+            } finally {
+                searcherManager.release(searcher);
+            }
             return collector.getCount();
         } catch (IOException e) {
             log.error("Unexpected error getting entry count for feed: "
@@ -217,46 +450,207 @@ public class LuceneStorage implements Storage {
         return -1;
     }
 
+    /**
+     * Returns a key that is the same for all equivalent count queries, or the
+     * empty string if the query is unfiltered.
+     */
+    private static String getCountKey(Date after, Date before, String search,
+            String[] mentions, String[] tags, String verb) {
+        StringBuilder key = new StringBuilder();
+        if (after != null) {
+            key.append("a:").append(after.getTime()).append('\n');
+        }
+        if (before != null) {
+            key.append("b:").append(before.getTime()).append('\n');
+        }
+        if (search != null && search.trim().length() > 0) {
+            key.append("q:").append(search.trim().toLowerCase()).append('\n');
+        }
+        if (verb != null) {
+            key.append("v:").append(verb).append('\n');
+        }
+        appendSorted(key, "m:", mentions);
+        appendSorted(key, "t:", tags);
+        return key.toString();
+    }
+
+    private static void appendSorted(StringBuilder key, String prefix,
+            String[] values) {
+        if (values != null && values.length > 0) {
+            String[] sorted = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                sorted[i] = values[i].trim();
+            }
+            Arrays.sort(sorted);
+            for (String value : sorted) {
+                key.append(prefix).append(value).append('\n');
+            }
+        }
+    }
+
+    private Integer getCachedCount(String feedId, String key) {
+        synchronized (countCache) {
+            FeedCounts counts = countCache.get(feedId);
+            if (counts != null) {
+                if (key.length() == 0) {
+                    if (counts.total >= 0) {
+                        return counts.total;
+                    }
+                } else {
+                    return counts.filtered.get(key);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Caches a count only if the reader that produced it reflects all changes
+     * so far and no write to the feed is in progress: any later change is
+     * then applied to the cached value by endWrite().
+     */
+    private void putCachedCount(String feedId, String key, int count,
+            DirectoryReader reader) throws IOException {
+        synchronized (countCache) {
+            if (activeWrites.containsKey(feedId) || !reader.isCurrent()) {
+                return; // stale: pending changes not yet visible
+            }
+            FeedCounts counts = countCache.get(feedId);
+            if (counts == null) {
+                counts = new FeedCounts();
+                countCache.put(feedId, counts);
+            }
+            if (key.length() == 0) {
+                counts.total = count;
+            } else {
+                if (counts.filtered.size() >= MAX_FILTERED_COUNTS) {
+                    counts.filtered.clear();
+                }
+                counts.filtered.put(key, count);
+            }
+        }
+    }
+
+    /**
+     * Called before entries of the specified feed are written: returns true
+     * if the unfiltered count is cached and so the change must be counted.
+     * No counts are cached for the feed until the matching call to
+     * endWrite(), so a count computed concurrently can't be stored and then
+     * miss this change; overlapping writes to the same feed discard the
+     * cached count rather than risk counting the same entry twice.
+     */
+    private boolean beginWrite(String feedId) {
+        synchronized (countCache) {
+            Integer active = activeWrites.get(feedId);
+            FeedCounts counts = countCache.get(feedId);
+            if (active != null) {
+                activeWrites.put(feedId, active + 1);
+                if (counts != null) {
+                    counts.total = -1;
+                }
+                return false;
+            }
+            activeWrites.put(feedId, 1);
+            return counts != null && counts.total >= 0;
+        }
+    }
+
+    /**
+     * Called after entries of the specified feed were written, successfully
+     * or not: filtered counts are discarded and the unfiltered count is
+     * adjusted by the specified delta, or discarded too if the write failed
+     * and may have been partially applied.
+     */
+    private void endWrite(String feedId, int delta, boolean written) {
+        synchronized (countCache) {
+            Integer active = activeWrites.remove(feedId);
+            if (active != null && active > 1) {
+                activeWrites.put(feedId, active - 1);
+            }
+            FeedCounts counts = countCache.get(feedId);
+            if (counts != null) {
+                counts.filtered.clear();
+                if (!written) {
+                    counts.total = -1;
+                } else if (counts.total >= 0) {
+                    counts.total += delta;
+                }
+            }
+        }
+    }
+
     public String[] getEntryIds(int start, int length, Date after, Date before,
-            String query, String[] mentions, String[] tags, String verb) {
-        return _getEntryIdsForFeedId(null, start, length, after, before, query,
-                mentions, tags, verb);
+            String search, String[] mentions, String[] tags, String verb) {
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                ScoreDoc[] hits = searchEntries(searcher, null, start, length,
+                        after, before, search, mentions, tags, verb);
+                EntryColumns columns = new EntryColumns(searcher);
+                String[] result = new String[hits.length];
+                for (int i = 0; i < hits.length; i++) {
+                    result[i] = columns.getEntryKey(hits[i].doc);
+                }
+                return result;
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            log.error("Unexpected error getting query for entries", e);
+        } catch (QueryNodeException e) {
+            log.error("Unexpected error executing query for entries", e);
+        }
+        return null;
     }
 
     public long[] getEntryIdsForFeedId(String feedId, int start, int length,
-            Date after, Date before, String query, String[] mentions,
+            Date after, Date before, String search, String[] mentions,
             String[] tags, String verb) {
-        String[] ids = _getEntryIdsForFeedId(feedId, start, length, after,
-                before, query, mentions, tags, verb);
-        long[] result = null;
-        if (ids != null) {
-            result = new long[ids.length];
-            int i = 0;
-            int offset = feedId.length() + 1; // entry keys contain feed id
-            for (String id : ids) {
-                result[i++] = Long.parseLong(id.substring(offset), 16);
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                ScoreDoc[] hits = searchEntries(searcher, feedId, start,
+                        length, after, before, search, mentions, tags, verb);
+                EntryColumns columns = new EntryColumns(searcher);
+                long[] result = new long[hits.length];
+                for (int i = 0; i < hits.length; i++) {
+                    result[i] = columns.getEntryId(hits[i].doc);
+                }
+                return result;
+            } finally {
+                searcherManager.release(searcher);
             }
+        } catch (IOException e) {
+            log.error("Unexpected error getting query for feed: " + feedId, e);
+        } catch (QueryNodeException e) {
+            log.error("Unexpected error executing query for feed: " + feedId, e);
         }
-        return result;
+        return null;
     }
 
-    private String[] _getEntryIdsForFeedId(String feedId, int start,
+    public long[] getNextEntryIdsForFeedId(String feedId, long lastEntryId,
             int length, Date after, Date before, String search,
             String[] mentions, String[] tags, String verb) {
         try {
             Filter filter = buildRangeFilter(after, before);
             Query query = buildTextQuery(feedId, search, mentions, tags, verb);
-            TopDocs hits = new IndexSearcher(reader).search(query, filter,
-                    start + length, new Sort(new SortField("updated",
-                            SortField.Type.LONG, true)));
-            String[] result = new String[Math.min(length, hits.totalHits)];
-            int i = 0;
-            Set<String> fields = new HashSet<String>();
-            fields.add("entry"); // we only need the entry field
-            for (ScoreDoc e : hits.scoreDocs) {
-                result[i++] = new IndexSearcher(reader).doc(e.doc).get("entry");
-            }
-            return result;
+            // entry ids are unique within a feed, so the sort value alone
+            // identifies the position: skip every doc with the last id
+            FieldDoc last = new FieldDoc(Integer.MAX_VALUE, Float.NaN,
+                    new Object[] { Long.valueOf(lastEntryId) });
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                ScoreDoc[] hits = searcher.searchAfter(last, query, filter,
+                        length, SORT_BY_UPDATED).scoreDocs;
+                EntryColumns columns = new EntryColumns(searcher);
+                long[] result = new long[hits.length];
+                for (int i = 0; i < hits.length; i++) {
+                    result[i] = columns.getEntryId(hits[i].doc);
+                }
+                return result;
+            } finally {
+                searcherManager.release(searcher);
+            }
         } catch (IOException e) {
             log.error("Unexpected error getting query for feed: " + feedId, e);
         } catch (QueryNodeException e) {
@@ -265,6 +659,23 @@ public class LuceneStorage implements Storage {
         return null;
     }
 
+    /**
+     * Returns the matching hits from start to start+length, most recent first.
+     */
+    private ScoreDoc[] searchEntries(IndexSearcher searcher, String feedId,
+            int start, int length, Date after, Date before, String search,
+            String[] mentions, String[] tags, String verb) throws IOException,
+            QueryNodeException {
+        Filter filter = buildRangeFilter(after, before);
+        Query query = buildTextQuery(feedId, search, mentions, tags, verb);
+        ScoreDoc[] scoreDocs = searcher.search(query, filter, start + length,
+                SORT_BY_UPDATED).scoreDocs;
+        ScoreDoc[] result = new ScoreDoc[Math.max(0, scoreDocs.length - start)];
+        System.arraycopy(scoreDocs, scoreDocs.length - result.length, result,
+                0, result.length);
+        return result;
+    }
+
     private Filter buildRangeFilter(Date after, Date before) {
         if (after == null && before == null) {
             return null;
@@ -395,7 +806,8 @@ public class LuceneStorage implements Storage {
             // }
             // }
             //
-            getStorage(feedId).updateFeed(feedId, lastUpdated, content);
+            // a feed created locally since it was last seen becomes managed
+            resolveStorage(feedId).updateFeed(feedId, lastUpdated, content);
             // feedWriter.updateDocument(new Term("feed", feedId), document);
             // }
 
@@ -408,6 +820,16 @@ public class LuceneStorage implements Storage {
         }
     }
 
+    public String[] readFeedValidators(String feedId) throws IOException {
+        return getStorage(feedId).readFeedValidators(feedId);
+    }
+
+    public void updateFeedValidators(String feedId, String entityTag,
+            String lastModified) throws IOException {
+        getStorage(feedId).updateFeedValidators(feedId, entityTag,
+                lastModified);
+    }
+
     /**
      * Returns the contents of a signed entry element for the specified feed
      * which was previously passed to updateFeedEntry.
@@ -427,6 +849,45 @@ public class LuceneStorage implements Storage {
         return getStorage(feedId).readEntry(feedId, entryId);
     }
 
+    /**
+     * Returns true if an entry with the specified id is stored for the
+     * specified feed, as answered by the underlying storage.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the desired entry for the specified feed.
+     * @return true if the entry exists, otherwise false.
+     * @throws IOException
+     *             if a error occurs checking for the entry.
+     */
+    public boolean containsEntry(String feedId, long entryId)
+            throws IOException {
+        return getStorage(feedId).containsEntry(feedId, entryId);
+    }
+
+    /**
+     * Returns true if an entry with the specified id is stored for the
+     * specified feed with the specified signature value, as answered by the
+     * underlying storage.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the desired entry for the specified feed.
+     * @param signatureValue
+     *            the signature value of the entry without whitespace.
+     * @return true if the entry exists with the same signature value,
+     *         otherwise false.
+     * @throws IOException
+     *             if a error occurs checking for the entry.
+     */
+    public boolean containsEntry(String feedId, long entryId,
+            String signatureValue) throws IOException {
+        return getStorage(feedId).containsEntry(feedId, entryId,
+                signatureValue);
+    }
+
     /**
      * Receives the contents of a signed entry element to be stored and
      * associated with the specified feed and unique identifier for later
@@ -449,117 +910,192 @@ public class LuceneStorage implements Storage {
     public void updateEntry(String feedId, long entryId, Date publishDate,
             String content) throws IOException {
         try {
-            Entry entry = (Entry) abdera.getParser()
-                    .parse(new StringReader(content)).getRoot();
-
-            // we also accumulate categories, mentions, and verbs into
-            // a single combined multivalue string index
-            Set<String> tags = new HashSet<String>();
-
-            // get verb
-            String verb = null; // "post" is default verb
-            Element verbElement = entry.getExtension(new QName(
-                    "http://activitystrea.ms/spec/1.0/", "verb", "activity"));
-            if (verbElement != null) {
-                if (verbElement.getText() != null) {
-                    verb = verbElement.getText().trim().toLowerCase();
-                    while (verb.length() > 0
-                            && (verb.charAt(0) == '#' || verb.charAt(0) == '@')) {
-                        // strip our "special" characters
-                        verb = verb.substring(1);
-                    }
+            Document document = createDocument(feedId, entryId, content);
+            Storage storage = getStorage(feedId);
+            int added = 0;
+            boolean written = false;
+            boolean counted = beginWrite(feedId);
+            try {
+                if (counted && !storage.containsEntry(feedId, entryId)) {
+                    added = 1;
                 }
+
+                // persist the document
+                storage.updateEntry(feedId, entryId, publishDate,
+                        content);
+                trackingWriter.updateDocument(new Term("entry",
+                        getEntryKeyString(feedId, entryId)), document);
+                written = true;
+            } finally {
+                endWrite(feedId, added, written);
+            }
+        } catch (Throwable t) {
+            log.error("Error from update entry: " + feedId + " : " + entryId, t);
+            throw new IOException("Could not parse input for: "
+                    + getEntryKeyString(feedId, entryId) + " : "
+                    + t.getMessage());
+        }
+    }
+
+    /**
+     * Receives the contents of one or more signed entry elements to be stored
+     * and associated with the specified feed. All entries are parsed and
+     * indexed before any are persisted, so a malformed entry fails the whole
+     * batch, and the delegate persists the batch in a single operation.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entries
+     *            the entries whose contents are to be persisted.
+     * @throws IOException
+     *             if a error occurs persisting the entry data.
+     */
+    public void updateEntries(String feedId, List<EntryRecord> entries)
+            throws IOException {
+        List<Document> documents = new LinkedList<Document>();
+        for (EntryRecord entry : entries) {
+            try {
+                documents.add(createDocument(feedId, entry.getEntryId(),
+                        entry.getContent()));
+            } catch (Throwable t) {
+                log.error("Error from update entries: " + feedId + " : "
+                        + entry.getEntryId(), t);
+                throw new IOException("Could not parse input for: "
+                        + getEntryKeyString(feedId, entry.getEntryId())
+                        + " : " + t.getMessage());
             }
-            if (verb == null || verb.length() == 0) {
-                verb = "post"; // "post" is default verb
-            }
-            tags.add(verb);
-
-            // get mentions
-            List<Element> mentions = entry.getExtensions(new QName(
-                    Common.NS_URI, "mention", "trsst"));
-            if (mentions != null) {
-                String mention;
-                for (Element e : mentions) {
-                    mention = e.getText();
-                    if (mention != null) {
-                        mention = mention.trim();
-                        if (mention.startsWith(Common.FEED_URN_PREFIX)) {
-                            mention = mention.substring(Common.FEED_URN_PREFIX
-                                    .length());
-                        }
-                        if (mention.startsWith(Common.ENTRY_URN_PREFIX)) {
-                            mention = mention.substring(Common.ENTRY_URN_PREFIX
-                                    .length());
-                        }
-                        tags.add('@' + mention);
+        }
+        Storage storage = getStorage(feedId);
+        Set<Long> added = new HashSet<Long>();
+        boolean written = false;
+        boolean counted = beginWrite(feedId);
+        try {
+            if (counted) {
+                for (EntryRecord entry : entries) {
+                    if (!storage.containsEntry(feedId, entry.getEntryId())) {
+                        added.add(entry.getEntryId());
                     }
                 }
             }
+            storage.updateEntries(feedId, entries);
+            Iterator<Document> i = documents.iterator();
+            for (EntryRecord entry : entries) {
+                trackingWriter.updateDocument(new Term("entry",
+                        getEntryKeyString(feedId, entry.getEntryId())),
+                        i.next());
+            }
+            written = true;
+        } finally {
+            endWrite(feedId, added.size(), written);
+        }
+    }
 
-            // get categories
-            List<Category> categories = entry.getCategories();
-            if (mentions != null) {
-                for (Category e : categories) {
-                    if (e.getText() != null) {
-                        tags.add('#' + e.getText().trim().toLowerCase());
+    /**
+     * Parses the specified entry and extracts its fields into a document for
+     * the full-text search index.
+     */
+    private Document createDocument(String feedId, long entryId,
+            String content) {
+        Entry entry = (Entry) abdera.getParser()
+                .parse(new StringReader(content)).getRoot();
+
+        // we also accumulate categories, mentions, and verbs into
+        // a single combined multivalue string index
+        Set<String> tags = new HashSet<String>();
+
+        // get verb
+        String verb = null; // "post" is default verb
+        Element verbElement = entry.getExtension(new QName(
+                "http://activitystrea.ms/spec/1.0/", "verb", "activity"));
+        if (verbElement != null) {
+            if (verbElement.getText() != null) {
+                verb = verbElement.getText().trim().toLowerCase();
+                while (verb.length() > 0
+                        && (verb.charAt(0) == '#' || verb.charAt(0) == '@')) {
+                    // strip our "special" characters
+                    verb = verb.substring(1);
+                }
+            }
+        }
+        if (verb == null || verb.length() == 0) {
+            verb = "post"; // "post" is default verb
+        }
+        tags.add(verb);
+
+        // get mentions
+        List<Element> mentions = entry.getExtensions(new QName(
+                Common.NS_URI, "mention", "trsst"));
+        if (mentions != null) {
+            String mention;
+            for (Element e : mentions) {
+                mention = e.getText();
+                if (mention != null) {
+                    mention = mention.trim();
+                    if (mention.startsWith(Common.FEED_URN_PREFIX)) {
+                        mention = mention.substring(Common.FEED_URN_PREFIX
+                                .length());
                     }
+                    if (mention.startsWith(Common.ENTRY_URN_PREFIX)) {
+                        mention = mention.substring(Common.ENTRY_URN_PREFIX
+                                .length());
+                    }
+                    tags.add('@' + mention);
                 }
             }
+        }
 
-            // convert to list and persist
-            List<String> converted = new LinkedList<String>();
-            for (String tag : tags) {
-                converted.add(tag);
-            }
-
-            // extract fields for full-text search index
-            Document document = new Document();
-            StringBuffer text = new StringBuffer();
-            document.add(new StringField("entry", getEntryKeyString(feedId,
-                    entryId), Field.Store.YES));
-            text.append(entryId).append(' ');
-            document.add(new StringField("feed", feedId, Field.Store.NO));
-            text.append(feedId).append(' ');
-            document.add(new StringField("verb", verb, Field.Store.NO));
-            text.append(verb).append(' ');
-            document.add(new LongField("updated", entryId, Field.Store.NO));
-            text.append(verb).append(' ');
-
-            if (entry.getTitle() != null) {
-                String title = entry.getTitle().toLowerCase();
-                document.add(new TextField("title", title, Field.Store.NO));
-                text.append(title).append(' ');
-            }
-            if (entry.getSummary() != null) {
-                String summary = extractTextFromHtml(entry.getSummary())
-                        .toLowerCase();
-                // System.out.println("extracting: " + summary);
-                document.add(new TextField("summary", summary, Field.Store.NO));
-                text.append(summary).append(' ');
-            }
-            tags.remove(verb); // don't treat verb as tag in full-text search
-            for (String tag : tags) {
-                tag = tag.substring(1); // remove @ or #
-                document.add(new StringField("tag", tag, Field.Store.NO));
-                text.append(tag).append(' ');
-            }
-            document.add(new TextField("text", text.toString(), Field.Store.NO));
-
-            // persist the document
-            getStorage(feedId).updateEntry(feedId, entryId, publishDate,
-                    content);
-            writer.updateDocument(
-                    new Term("entry", getEntryKeyString(feedId, entryId)),
-                    document);
-            writer.commit();
-            refreshReader();
-        } catch (Throwable t) {
-            log.error("Error from update entry: " + feedId + " : " + entryId, t);
-            throw new IOException("Could not parse input for: "
-                    + getEntryKeyString(feedId, entryId) + " : "
-                    + t.getMessage());
+        // get categories
+        List<Category> categories = entry.getCategories();
+        if (mentions != null) {
+            for (Category e : categories) {
+                if (e.getText() != null) {
+                    tags.add('#' + e.getText().trim().toLowerCase());
+                }
+            }
+        }
+
+        // convert to list and persist
+        List<String> converted = new LinkedList<String>();
+        for (String tag : tags) {
+            converted.add(tag);
         }
+
+        // extract fields for full-text search index
+        Document document = new Document();
+        StringBuffer text = new StringBuffer();
+        document.add(new StringField("entry", getEntryKeyString(feedId,
+                entryId), Field.Store.YES));
+        text.append(entryId).append(' ');
+        document.add(new StringField("feed", feedId, Field.Store.NO));
+        text.append(feedId).append(' ');
+        document.add(new StringField("verb", verb, Field.Store.NO));
+        text.append(verb).append(' ');
+        document.add(new LongField("updated", entryId, Field.Store.NO));
+        // columnar copies of the entry key for paging without stored fields
+        document.add(new NumericDocValuesField("id", entryId));
+        document.add(new SortedDocValuesField("feed", new BytesRef(feedId)));
+        text.append(verb).append(' ');
+
+        if (entry.getTitle() != null) {
+            String title = entry.getTitle().toLowerCase();
+            document.add(new TextField("title", title, Field.Store.NO));
+            text.append(title).append(' ');
+        }
+        if (entry.getSummary() != null) {
+            String summary = extractTextFromHtml(entry.getSummary())
+                    .toLowerCase();
+            // System.out.println("extracting: " + summary);
+            document.add(new TextField("summary", summary, Field.Store.NO));
+            text.append(summary).append(' ');
+        }
+        tags.remove(verb); // don't treat verb as tag in full-text search
+        for (String tag : tags) {
+            tag = tag.substring(1); // remove @ or #
+            document.add(new StringField("tag", tag, Field.Store.NO));
+            text.append(tag).append(' ');
+        }
+        document.add(new TextField("text", text.toString(), Field.Store.NO));
+        return document;
     }
 
     // borrowed from lai-xin-chu: http://stackoverflow.com/questions/12576119
@@ -604,19 +1140,29 @@ public class LuceneStorage implements Storage {
      */
     public void deleteEntry(String feedId, long entryId)
             throws FileNotFoundException, IOException {
+        Storage storage = getStorage(feedId);
+        int removed = 0;
+        boolean written = false;
+        boolean counted = beginWrite(feedId);
         try {
-            writer.deleteDocuments(new Term("entry", getEntryKeyString(feedId,
-                    entryId)));
-            writer.commit();
-            refreshReader();
-        } catch (Throwable t) {
-            log.error("Unexpected error from delete entry: " + feedId + " : "
-                    + entryId, t);
-            throw new IOException("Unexpected error while deleting: "
-                    + getEntryKeyString(feedId, entryId) + " : "
-                    + t.getMessage());
+            if (counted && storage.containsEntry(feedId, entryId)) {
+                removed = -1;
+            }
+            try {
+                trackingWriter.deleteDocuments(new Term("entry",
+                        getEntryKeyString(feedId, entryId)));
+            } catch (Throwable t) {
+                log.error("Unexpected error from delete entry: " + feedId
+                        + " : " + entryId, t);
+                throw new IOException("Unexpected error while deleting: "
+                        + getEntryKeyString(feedId, entryId) + " : "
+                        + t.getMessage());
+            }
+            storage.deleteEntry(feedId, entryId);
+            written = true;
+        } finally {
+            endWrite(feedId, removed, written);
         }
-        getStorage(feedId).deleteEntry(feedId, entryId);
     }
 
     private static final String getEntryKeyString(String feedId, long entityId) {
@@ -669,6 +1215,31 @@ public class LuceneStorage implements Storage {
                 resourceId);
     }
 
+    /**
+     * Returns a descriptor of the resource data for the specified entry for
+     * the specified feed, providing its mime type, length, and modification
+     * date without reading the data, and a channel to read the data when
+     * needed.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the specified entry.
+     * @param resourceId
+     *            the desired resource id for the specified feed and entry.
+     * @return a descriptor of the resource.
+     * @throws FileNotFoundException
+     *             if the specified resource does not exist on this server.
+     * @throws IOException
+     *             if a error occurs obtaining the resource metadata.
+     */
+    public ResourceDescriptor readFeedEntryResourceDescriptor(String feedId,
+            long entryId, String resourceId) throws FileNotFoundException,
+            IOException {
+        return getStorage(feedId).readFeedEntryResourceDescriptor(feedId,
+                entryId, resourceId);
+    }
+
     /**
      * Stores a binary resource for the specified feed and entry by reading the
      * specified input stream and persisting the contents for later retrieval by
@@ -698,6 +1269,37 @@ public class LuceneStorage implements Storage {
                 mimeType, publishDate, data);
     }
 
+    /**
+     * Stores a binary resource for the specified feed and entry for later
+     * retrieval by readFeedEntryResource(), taking ownership of the specified
+     * file.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the specified entry.
+     * @param resourceId
+     *            the desired resource id for the specified feed and entry.
+     * @param mimeType
+     *            the mime type of the data if known, otherwise null.
+     * @param publishDate
+     *            the datetime when the associated entry says it was or will be
+     *            published; used for date/time range queries
+     * @param data
+     *            a file whose contents are to be persisted.
+     * @param digest
+     *            the ripemd160 digest of the contents of the file if known,
+     *            otherwise null.
+     * @throws IOException
+     *             if a error occurs persisting the resource data.
+     */
+    public void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimeType, Date publishDate, File data,
+            byte[] digest) throws IOException {
+        getStorage(feedId).updateFeedEntryResource(feedId, entryId, resourceId,
+                mimeType, publishDate, data, digest);
+    }
+
     /**
      * Delete an existing resource for the specified feed and entry.
      * 
@@ -715,9 +1317,128 @@ public class LuceneStorage implements Storage {
         getStorage(feedId).deleteFeedEntryResource(feedId, entryId, resourceId);
     }
 
+    /**
+     * Reads entry ids and feed ids for hits from the doc values columns,
+     * falling back to the stored entry key for documents indexed before the
+     * columns existed.
+     */
+    private static class EntryColumns {
+        private final IndexSearcher searcher;
+        private final List<AtomicReaderContext> leaves;
+        private final NumericDocValues[] ids;
+        private final SortedDocValues[] feeds;
+        private final BytesRef bytes = new BytesRef();
+
+        EntryColumns(IndexSearcher searcher) {
+            this.searcher = searcher;
+            this.leaves = searcher.getIndexReader().leaves();
+            this.ids = new NumericDocValues[leaves.size()];
+            this.feeds = new SortedDocValues[leaves.size()];
+        }
+
+        long getEntryId(int doc) throws IOException {
+            int leaf = ReaderUtil.subIndex(doc, leaves);
+            AtomicReaderContext context = leaves.get(leaf);
+            if (ids[leaf] == null) {
+                ids[leaf] = context.reader().getNumericDocValues("id");
+                if (ids[leaf] == null) {
+                    return parseEntryId(getStoredKey(doc));
+                }
+            }
+            return ids[leaf].get(doc - context.docBase);
+        }
+
+        String getEntryKey(int doc) throws IOException {
+            int leaf = ReaderUtil.subIndex(doc, leaves);
+            AtomicReaderContext context = leaves.get(leaf);
+            if (feeds[leaf] == null) {
+                feeds[leaf] = context.reader().getSortedDocValues("feed");
+                if (feeds[leaf] == null) {
+                    return getStoredKey(doc);
+                }
+            }
+            feeds[leaf].get(doc - context.docBase, bytes);
+            return getEntryKeyString(bytes.utf8ToString(), getEntryId(doc));
+        }
+
+        private String getStoredKey(int doc) throws IOException {
+            return searcher.doc(doc, ENTRY_FIELDS).get("entry");
+        }
+    }
+
+    private static final String parseFeedId(String entryKey) {
+        return entryKey.substring(0, entryKey.lastIndexOf('-'));
+    }
+
+    private static final long parseEntryId(String entryKey) {
+        return Long.parseLong(
+                entryKey.substring(entryKey.lastIndexOf('-') + 1), 16);
+    }
+
+    /**
+     * Reindexes any documents written before the doc values columns were
+     * added to the schema, reading their content from the storage delegate.
+     * Entries that can no longer be read are removed from the index.
+     */
+    private void migrate() throws IOException {
+        List<String> keys = new LinkedList<String>();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            for (AtomicReaderContext context : searcher.getIndexReader()
+                    .leaves()) {
+                AtomicReader reader = context.reader();
+                FieldInfo info = reader.getFieldInfos().fieldInfo("id");
+                if (info != null && info.hasDocValues()) {
+                    continue; // segment already has the columns
+                }
+                Bits live = reader.getLiveDocs();
+                for (int i = 0; i < reader.maxDoc(); i++) {
+                    if (live == null || live.get(i)) {
+                        keys.add(reader.document(i, ENTRY_FIELDS).get("entry"));
+                    }
+                }
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        log.info("Reindexing " + keys.size() + " entries");
+        for (String key : keys) {
+            String feedId = parseFeedId(key);
+            long entryId = parseEntryId(key);
+            Term term = new Term("entry", key);
+            try {
+                String content = getStorage(feedId).readEntry(feedId, entryId);
+                trackingWriter.updateDocument(term,
+                        createDocument(feedId, entryId, content));
+            } catch (FileNotFoundException e) {
+                log.warn("Removing index entry with missing content: " + key);
+                trackingWriter.deleteDocuments(term);
+            } catch (Throwable t) {
+                log.error("Could not reindex entry: " + key, t);
+            }
+        }
+        writer.commit();
+        searcherManager.maybeRefreshBlocking();
+        log.info("Reindexing complete");
+    }
+
     private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
             .getLogger(Client.class);
 
+    /**
+     * Cached entry counts for a single feed.
+     */
+    private static class FeedCounts {
+        /** Unfiltered count, or -1 if unknown. */
+        int total = -1;
+        /** Counts for filtered queries keyed by getCountKey(). */
+        final Map<String, Integer> filtered = new HashMap<String, Integer>();
+    }
+
     private static class CountCollector extends Collector {
         int count;
 
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides when a feed is due to be fetched again from a relay or external
+ * source, based on how often the feed has been observed to change.
+ *
+ * When a fetch finds new content, the feed is next due after half its update
+ * cadence, estimated from the gaps between its most recent entry ids, which
+ * are publish times. Each fetch that finds nothing new doubles the interval,
+ * as does each failed fetch. Intervals are kept within fixed bounds and
+ * jittered so that feeds fetched together drift apart. Feeds with no history
+ * are always due.
+ *
+ * Instances are thread-safe.
+ *
+ * @author mpowers
+ */
+class RefreshPlanner {
+
+    static final long MIN_INTERVAL = 15 * 1000; // fifteen seconds
+    static final long MAX_INTERVAL = 6 * 60 * 60 * 1000; // six hours
+    private static final double JITTER = 0.2;
+    private static final int MAX_FEEDS = 10000;
+
+    private final Random random = new Random();
+
+    private final Map<String, Plan> plans = new LinkedHashMap<String, Plan>(16,
+            0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+            return size() > MAX_FEEDS;
+        }
+    };
+
+    private static class Plan {
+        long updated;
+        long latestEntryId;
+        long interval;
+        long nextDue;
+    }
+
+    /**
+     * Returns true if the specified feed should be fetched at the specified
+     * time.
+     */
+    boolean isDue(String feedId, long now) {
+        synchronized (plans) {
+            Plan plan = plans.get(feedId);
+            return plan == null || now >= plan.nextDue;
+        }
+    }
+
+    /**
+     * Records a successful fetch of the specified feed.
+     *
+     * @param feedId
+     *            the feed that was fetched.
+     * @param updated
+     *            the updated time of the feed, or zero if not known.
+     * @param entryIds
+     *            the most recent entry ids of the feed, most recent first, or
+     *            null if they could not be read.
+     * @param now
+     *            the time of the fetch.
+     */
+    void fetched(String feedId, long updated, long[] entryIds, long now) {
+        if (entryIds == null) {
+            entryIds = new long[0];
+        }
+        long latestEntryId = entryIds.length > 0 ? entryIds[0] : 0;
+        synchronized (plans) {
+            Plan plan = plans.get(feedId);
+            if (plan == null || updated > plan.updated
+                    || latestEntryId > plan.latestEntryId) {
+                // new or changed: follow the cadence
+                long cadence = getCadence(Math.max(updated, latestEntryId),
+                        entryIds, now);
+                if (plan == null) {
+                    plan = new Plan();
+                    plans.put(feedId, plan);
+                }
+                plan.interval = bound(cadence / 2);
+            } else {
+                // unchanged: back off
+                plan.interval = bound(plan.interval * 2);
+            }
+            plan.updated = Math.max(plan.updated, updated);
+            plan.latestEntryId = Math.max(plan.latestEntryId, latestEntryId);
+            plan.nextDue = now + jitter(plan.interval);
+        }
+    }
+
+    /**
+     * Records a failed fetch of the specified feed.
+     */
+    void failed(String feedId, long now) {
+        synchronized (plans) {
+            Plan plan = plans.get(feedId);
+            if (plan == null) {
+                plan = new Plan();
+                plan.interval = MIN_INTERVAL;
+                plans.put(feedId, plan);
+            } else {
+                plan.interval = bound(plan.interval * 2);
+            }
+            plan.nextDue = now + jitter(plan.interval);
+        }
+    }
+
+    /**
+     * Returns the average time between the specified entry ids, or the time
+     * since the last update if there are fewer than two.
+     */
+    private static long getCadence(long lastUpdated, long[] entryIds,
+            long now) {
+        if (entryIds.length > 1) {
+            return (entryIds[0] - entryIds[entryIds.length - 1])
+                    / (entryIds.length - 1);
+        }
+        if (lastUpdated > 0 && lastUpdated < now) {
+            return now - lastUpdated;
+        }
+        return MIN_INTERVAL;
+    }
+
+    private static long bound(long interval) {
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+
+    private long jitter(long interval) {
+        double factor = 1 + JITTER * (2 * random.nextDouble() - 1);
+        return (long) (interval * factor);
+    }
+
+}
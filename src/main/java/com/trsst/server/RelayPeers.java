@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the latency and success rate of each relay peer as exponentially
+ * weighted moving averages, to decide which peers to ask first and how long
+ * to wait for a peer before also asking another.
+ *
+ * Peers are preferred by expected latency divided by success rate; peers with
+ * no history are tried first so that every peer gets measured. The hedge delay
+ * for a peer estimates a high percentile of its latency as the average plus
+ * four times the average deviation, as TCP does for retransmission.
+ *
+ * Instances are thread-safe.
+ *
+ * @author mpowers
+ */
+class RelayPeers {
+
+    /**
+     * Weight of each new sample.
+     */
+    private static final double ALPHA = 0.2;
+    static final long DEFAULT_HEDGE_DELAY = 1000;
+    static final long MIN_HEDGE_DELAY = 50;
+    static final long MAX_HEDGE_DELAY = 5000;
+
+    private final Map<String, Stats> stats = new HashMap<String, Stats>();
+
+    private static class Stats {
+        boolean measured;
+        double latency;
+        double deviation;
+        double success = 1.0;
+
+        double getScore() {
+            if (!measured) {
+                return 0;
+            }
+            return latency / Math.max(success, 0.01);
+        }
+    }
+
+    /**
+     * Returns the specified peers in the order in which they should be tried;
+     * peers with equal scores are shuffled.
+     */
+    List<URL> order(URL[] peers) {
+        List<URL> result = new ArrayList<URL>(peers.length);
+        Collections.addAll(result, peers);
+        Collections.shuffle(result);
+        final Map<URL, Double> scores = new HashMap<URL, Double>();
+        synchronized (stats) {
+            for (URL peer : result) {
+                Stats s = stats.get(peer.toString());
+                scores.put(peer, s == null ? 0 : s.getScore());
+            }
+        }
+        Collections.sort(result, new Comparator<URL>() {
+            public int compare(URL a, URL b) {
+                return Double.compare(scores.get(a), scores.get(b));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns how long to wait for the specified peer before also asking
+     * another.
+     */
+    long getHedgeDelay(URL peer) {
+        synchronized (stats) {
+            Stats s = stats.get(peer.toString());
+            if (s == null || !s.measured) {
+                return DEFAULT_HEDGE_DELAY;
+            }
+            long delay = (long) (s.latency + 4 * s.deviation);
+            return Math.max(MIN_HEDGE_DELAY, Math.min(MAX_HEDGE_DELAY, delay));
+        }
+    }
+
+    /**
+     * Records a successful fetch from the specified peer.
+     */
+    void succeeded(URL peer, long latency) {
+        record(peer, latency, 1.0);
+    }
+
+    /**
+     * Records a failed fetch from the specified peer; the time taken to fail
+     * counts toward its latency.
+     */
+    void failed(URL peer, long latency) {
+        record(peer, latency, 0.0);
+    }
+
+    /**
+     * Records a fetch from the specified peer that was aborted after the
+     * specified time because another peer answered first. The time taken is
+     * only a lower bound on its latency, so it is recorded only if it exceeds
+     * the average; losing counts against the peer's success rate.
+     */
+    void aborted(URL peer, long elapsed) {
+        synchronized (stats) {
+            Stats s = getStats(peer);
+            if (!s.measured || elapsed > s.latency) {
+                sample(s, elapsed);
+            }
+            s.success += ALPHA * (0.0 - s.success);
+        }
+    }
+
+    private void record(URL peer, long latency, double outcome) {
+        synchronized (stats) {
+            Stats s = getStats(peer);
+            sample(s, latency);
+            s.success += ALPHA * (outcome - s.success);
+        }
+    }
+
+    private Stats getStats(URL peer) {
+        Stats s = stats.get(peer.toString());
+        if (s == null) {
+            s = new Stats();
+            stats.put(peer.toString(), s);
+        }
+        return s;
+    }
+
+    private static void sample(Stats s, long latency) {
+        if (!s.measured) {
+            s.measured = true;
+            s.latency = latency;
+            s.deviation = latency / 2.0;
+        } else {
+            s.deviation += ALPHA * (Math.abs(latency - s.latency) - s.deviation);
+            s.latency += ALPHA * (latency - s.latency);
+        }
+    }
+
+}
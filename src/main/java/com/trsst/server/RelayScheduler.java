@@ -0,0 +1,324 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules background fetches from relay peers and external sources on a
+ * bounded pool of worker threads, so that a slow source delays only its own
+ * fetches.
+ *
+ * Requests for a key that is already pending are coalesced into the pending
+ * fetch. Fetches to the same host are limited to a fixed number at a time;
+ * further fetches for that host wait for a slot without holding a worker.
+ * When the maximum number of fetches are pending, new requests are rejected
+ * rather than queued: callers have already been served from local storage,
+ * and the next request will try again.
+ *
+ * The number of workers, the maximum number of pending fetches, and the limit
+ * per host are configured with the com.trsst.server.relay.threads,
+ * com.trsst.server.relay.queue, and com.trsst.server.relay.host properties.
+ * Statistics are logged periodically while there is activity, at an interval
+ * in milliseconds configured with com.trsst.server.relay.stats, or never if
+ * zero.
+ *
+ * @author mpowers
+ */
+public class RelayScheduler {
+
+    /**
+     * Delay before retrying a fetch whose host was busy.
+     */
+    private static final long HOST_RETRY_DELAY = 1000;
+
+    /**
+     * Default interval between logging statistics.
+     */
+    public static final long DEFAULT_STATS_INTERVAL = 5 * 60 * 1000;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ConcurrentMap<String, Boolean> pending;
+    private final ConcurrentMap<String, AtomicInteger> hosts;
+    private final AtomicInteger pendingCount;
+    private final int maxPending;
+    private final int maxPerHost;
+
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private long reportedCount;
+
+    /**
+     * Creates a scheduler configured from system properties.
+     */
+    public RelayScheduler() {
+        this(Integer.getInteger("com.trsst.server.relay.threads", 4), Integer
+                .getInteger("com.trsst.server.relay.queue", 1000), Integer
+                .getInteger("com.trsst.server.relay.host", 2), Long.getLong(
+                "com.trsst.server.relay.stats", DEFAULT_STATS_INTERVAL));
+    }
+
+    /**
+     * @param threads
+     *            the number of worker threads.
+     * @param maxPending
+     *            the maximum number of fetches pending at one time.
+     * @param maxPerHost
+     *            the maximum number of fetches to a single host at one time.
+     */
+    public RelayScheduler(int threads, int maxPending, int maxPerHost) {
+        this(threads, maxPending, maxPerHost, DEFAULT_STATS_INTERVAL);
+    }
+
+    /**
+     * @param threads
+     *            the number of worker threads.
+     * @param maxPending
+     *            the maximum number of fetches pending at one time.
+     * @param maxPerHost
+     *            the maximum number of fetches to a single host at one time.
+     * @param statsInterval
+     *            the interval in milliseconds between logging statistics, or
+     *            zero to never log them.
+     */
+    public RelayScheduler(int threads, int maxPending, int maxPerHost,
+            long statsInterval) {
+        this.maxPending = maxPending;
+        this.maxPerHost = maxPerHost;
+        this.pending = new ConcurrentHashMap<String, Boolean>();
+        this.hosts = new ConcurrentHashMap<String, AtomicInteger>();
+        this.pendingCount = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "RelayScheduler "
+                                + count.incrementAndGet());
+                        // never prevent exit
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        if (statsInterval > 0) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    logStatistics();
+                }
+            }, statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Logs statistics if any fetch finished or is pending since last logged.
+     */
+    private void logStatistics() {
+        long completed = completedCount.get();
+        if (completed != reportedCount || pendingCount.get() > 0) {
+            reportedCount = completed;
+            log.info(toString());
+        }
+    }
+
+    /**
+     * Schedules the specified fetch to run after the specified delay, unless
+     * a fetch for the same key is already pending.
+     *
+     * @param key
+     *            identifies the fetch for coalescing, e.g. a feed id.
+     * @param host
+     *            the host to be contacted, or null if not known, in which
+     *            case the fetch is not limited per host.
+     * @param fetch
+     *            the fetch to run.
+     * @param delay
+     *            the delay in milliseconds.
+     * @return true if scheduled, or false if coalesced or rejected.
+     */
+    public boolean schedule(final String key, final String host,
+            final Runnable fetch, long delay) {
+        if (pending.putIfAbsent(key, Boolean.TRUE) != null) {
+            coalescedCount.incrementAndGet();
+            return false;
+        }
+        if (pendingCount.incrementAndGet() > maxPending) {
+            log.warn("Relay queue is full: rejecting: " + key);
+            done(key);
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    execute(key, host, fetch);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down
+            done(key);
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void execute(final String key, final String host,
+            final Runnable fetch) {
+        if (host == null) {
+            run(key, fetch);
+            return;
+        }
+        AtomicInteger active = hosts.get(host);
+        if (active == null) {
+            AtomicInteger existing = hosts.putIfAbsent(host,
+                    active = new AtomicInteger());
+            if (existing != null) {
+                active = existing;
+            }
+        }
+        if (active.incrementAndGet() > maxPerHost) {
+            // host is busy: retry later rather than tie up a worker
+            active.decrementAndGet();
+            try {
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        execute(key, host, fetch);
+                    }
+                }, HOST_RETRY_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                done(key);
+            }
+            return;
+        }
+        try {
+            run(key, fetch);
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private void run(String key, Runnable fetch) {
+        long start = System.currentTimeMillis();
+        try {
+            log.debug("Relay fetch starting: " + key);
+            fetch.run();
+        } catch (Throwable t) {
+            log.error("Relay fetch failed: " + key, t);
+        } finally {
+            done(key);
+            long latency = System.currentTimeMillis() - start;
+            completedCount.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            long max;
+            while (latency > (max = maxLatency.get())) {
+                if (maxLatency.compareAndSet(max, latency)) {
+                    break;
+                }
+            }
+            log.debug("Relay fetch finished: " + key + " : " + latency
+                    + "ms : queued: " + getQueueDepth());
+        }
+    }
+
+    private void done(String key) {
+        // fetches discarded by shutdown are no longer counted
+        if (pending.remove(key) != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of fetches pending, including those waiting for
+     * their delay, waiting for their host, and running.
+     */
+    public int getQueueDepth() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Returns the number of fetches currently running.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of fetches that have finished.
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Returns the number of fetches rejected because the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of fetches coalesced into a pending fetch.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the average time in milliseconds taken by a fetch.
+     */
+    public long getAverageLatency() {
+        long count = completedCount.get();
+        return count == 0 ? 0 : totalLatency.get() / count;
+    }
+
+    /**
+     * Returns the longest time in milliseconds taken by a fetch.
+     */
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    /**
+     * Stops running fetches and discards any pending fetches.
+     */
+    public void shutdown() {
+        log.info("Shutting down: " + this);
+        executor.shutdownNow();
+        pending.clear();
+        pendingCount.set(0);
+    }
+
+    public String toString() {
+        return "RelayScheduler[queued=" + getQueueDepth() + ", active="
+                + getActiveCount() + ", completed=" + getCompletedCount()
+                + ", rejected=" + getRejectedCount() + ", coalesced="
+                + getCoalescedCount() + ", avgLatency=" + getAverageLatency()
+                + "ms, maxLatency=" + getMaxLatency() + "ms]";
+    }
+
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(RelayScheduler.class);
+}
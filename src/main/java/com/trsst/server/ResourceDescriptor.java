@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+/**
+ * Describes a stored resource without reading its contents, so callers can
+ * answer metadata requests without any data access and then stream all or
+ * part of the contents directly from storage. Like Storage, this class
+ * intentionally has no dependencies on the trsst or abdera frameworks.
+ *
+ * @author mpowers
+ */
+public abstract class ResourceDescriptor {
+
+    private final String mimeType;
+    private final long length;
+    private final Date lastModified;
+
+    /**
+     * @param mimeType
+     *            the mime type of the resource, or null if not known.
+     * @param length
+     *            the length of the resource in bytes, or -1 if not known.
+     * @param lastModified
+     *            when the resource was last modified, or null if not known.
+     */
+    protected ResourceDescriptor(String mimeType, long length,
+            Date lastModified) {
+        this.mimeType = mimeType;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns a descriptor for the specified file.
+     *
+     * @throws FileNotFoundException
+     *             if the file does not exist.
+     */
+    public static ResourceDescriptor forFile(final File file, String mimeType)
+            throws FileNotFoundException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.toString());
+        }
+        return new ResourceDescriptor(mimeType, file.length(), new Date(
+                file.lastModified())) {
+            public ReadableByteChannel openChannel() throws IOException {
+                return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+        };
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Opens a channel to read the contents of the resource from the
+     * beginning. Callers must close the channel when finished.
+     */
+    public abstract ReadableByteChannel openChannel() throws IOException;
+
+    /**
+     * Writes the specified range of the contents of the resource to the
+     * specified channel. File-backed resources are transferred by the
+     * operating system where supported, without copying through the heap.
+     *
+     * @param position
+     *            the offset of the first byte to write.
+     * @param count
+     *            the number of bytes to write.
+     * @param target
+     *            the destination channel, which is not closed.
+     * @throws IOException
+     *             if the resource ends before the range is written or if an
+     *             error occurs.
+     */
+    public void transferTo(long position, long count,
+            WritableByteChannel target) throws IOException {
+        ReadableByteChannel channel = openChannel();
+        try {
+            if (channel instanceof FileChannel) {
+                FileChannel file = (FileChannel) channel;
+                long written;
+                while (count > 0) {
+                    written = file.transferTo(position, count, target);
+                    if (written <= 0) {
+                        throw new IOException("Unexpected end of resource");
+                    }
+                    position += written;
+                    count -= written;
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                while (position > 0 || count > 0) {
+                    buffer.clear();
+                    if (position > 0 && position < buffer.capacity()) {
+                        buffer.limit((int) position);
+                    } else if (position == 0 && count < buffer.capacity()) {
+                        buffer.limit((int) count);
+                    }
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Unexpected end of resource");
+                    }
+                    buffer.flip();
+                    if (position > 0) {
+                        position -= buffer.remaining(); // skip
+                    } else {
+                        count -= buffer.remaining();
+                        while (buffer.hasRemaining()) {
+                            target.write(buffer);
+                        }
+                    }
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+
+import org.apache.abdera.protocol.server.context.SimpleResponseContext;
+
+/**
+ * Responds with all or part of a stored resource, transferring the contents
+ * directly from storage to the response stream only when the response is
+ * written, so HEAD requests never touch the data.
+ *
+ * @author mpowers
+ */
+public class ResourceResponseContext extends SimpleResponseContext {
+
+    private final ResourceDescriptor resource;
+    private final long position;
+    private final long count;
+
+    /**
+     * @param resource
+     *            the resource to be sent.
+     * @param position
+     *            the offset of the first byte to send.
+     * @param count
+     *            the number of bytes to send.
+     * @param status
+     *            the response status code.
+     */
+    public ResourceResponseContext(ResourceDescriptor resource, long position,
+            long count, int status) {
+        this.resource = resource;
+        this.position = position;
+        this.count = count;
+        setStatus(status);
+        setBinary(true);
+        setContentLength(count);
+        if (resource.getMimeType() != null) {
+            setContentType(resource.getMimeType());
+        }
+        if (resource.getLastModified() != null) {
+            setLastModified(resource.getLastModified());
+        }
+    }
+
+    public boolean hasEntity() {
+        return count > 0;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        resource.transferTo(position, count, Channels.newChannel(out));
+        out.flush();
+    }
+
+    protected void writeEntity(Writer writer) throws IOException {
+        throw new UnsupportedOperationException(
+                "Binary resources cannot be written as characters");
+    }
+
+}
@@ -0,0 +1,887 @@
+/*
+ * Copyright 2013 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.trsst.Common;
+
+/**
+ * File persistence that appends entries to a small number of segment files
+ * per feed rather than writing a file per entry, which scales to feeds with
+ * many thousands of entries without exhausting inodes or slowing directory
+ * listings, and makes backups a matter of copying a few large files.
+ *
+ * Each feed directory contains a "segments" directory holding numbered
+ * segment files and an index log. Entry contents are appended to the active
+ * segment exactly as received, so readEntry returns the original signed bytes.
+ * Each write or delete then appends a fixed-length record to the index log:
+ * entry id, publish date, segment number, offset, length, and a flag. On open,
+ * the log is replayed into memory, ignoring any partially written record.
+ *
+ * Replaced and deleted entries leave dead space in their segments; segments
+ * are periodically rewritten in the background once most of their contents
+ * are dead.
+ *
+ * Feeds, keys, and resources are stored in the same layout as FileStorage,
+ * and entries previously written by FileStorage are imported the first time a
+ * feed is opened.
+ *
+ * @author mpowers
+ */
+public class SegmentStorage implements Storage {
+
+    public static final String SEGMENT_DIR = "segments";
+    public static final String SEGMENT_SUFFIX = ".seg";
+    public static final String INDEX_FILE = "entries.idx";
+
+    /**
+     * Size in bytes after which a new segment is started; configurable with
+     * the "com.trsst.server.segments.size" property.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Interval in milliseconds between checks for segments needing
+     * compaction; configurable with the "com.trsst.server.segments.compact"
+     * property.
+     */
+    public static final long DEFAULT_COMPACT_INTERVAL = 60000;
+
+    /**
+     * Segments are not compacted until they hold at least this many bytes.
+     */
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+    /**
+     * Maximum number of feeds whose segment files are kept open.
+     */
+    private static final int MAX_OPEN_FEEDS = 100;
+
+    /**
+     * Maximum number of feeds whose index is kept in memory.
+     */
+    private static final int MAX_LOADED_FEEDS = 1000;
+
+    /*
+     * Index record: entry id, publish date, segment, offset, length, flag.
+     */
+    private static final int RECORD_LENGTH = 8 + 8 + 4 + 8 + 4 + 1;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 0;
+
+    private static final Charset UTF8 = Charset.forName(FileStorage.ENCODING);
+
+    private final File root;
+    private final FileStorage files;
+    private final long segmentSize;
+    private Timer compactTimer;
+
+    /**
+     * Segments of recently accessed feeds by feed id, least recently used
+     * unloaded first; guarded by synchronizing on the open map.
+     */
+    private final Map<String, Segments> loaded = new LinkedHashMap<String, Segments>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Segments> eldest) {
+            if (size() > MAX_LOADED_FEEDS) {
+                // waits for any operation in progress on these segments
+                eldest.getValue().evict();
+                open.remove(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Feeds whose segment files are open, least recently used closed first;
+     * guarded by synchronizing on the map itself.
+     */
+    private final Map<String, Segments> open = new LinkedHashMap<String, Segments>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Segments> eldest) {
+            if (size() > MAX_OPEN_FEEDS) {
+                // files reopen as needed
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public SegmentStorage() {
+        this(Common.getServerRoot());
+    }
+
+    public SegmentStorage(File root) {
+        this.root = root;
+        this.files = new FileStorage(root);
+        this.segmentSize = getLongProperty("com.trsst.server.segments.size",
+                DEFAULT_SEGMENT_SIZE);
+        long interval = getLongProperty("com.trsst.server.segments.compact",
+                DEFAULT_COMPACT_INTERVAL);
+        compactTimer = new Timer("SegmentStorage compact", true);
+        compactTimer.schedule(new TimerTask() {
+            public void run() {
+                compact();
+            }
+        }, interval, interval);
+    }
+
+    private static long getLongProperty(String name, long defaultValue) {
+        String value = System.getProperty(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Stops background compaction and closes all open segments. This storage
+     * is unusable after calling this method.
+     */
+    public void close() {
+        synchronized (open) {
+            if (compactTimer != null) {
+                compactTimer.cancel();
+                compactTimer = null;
+            }
+            for (Segments segments : loaded.values()) {
+                segments.close();
+            }
+            open.clear();
+        }
+    }
+
+    /**
+     * Rewrites the segments of any recently used feed whose segments are
+     * mostly dead space.
+     */
+    public void compact() {
+        List<Segments> candidates;
+        synchronized (open) {
+            candidates = new ArrayList<Segments>(open.values());
+        }
+        for (Segments segments : candidates) {
+            try {
+                segments.compactIfNeeded();
+            } catch (Throwable t) {
+                log.error("Unexpected error compacting segments: "
+                        + segments.directory, t);
+            }
+        }
+    }
+
+    /**
+     * Returns the segments for the specified feed, loading the index log if
+     * necessary. The segments may be unloaded at any time after this method
+     * returns: use withSegments() to operate on them.
+     */
+    private Segments getSegments(String feedId) throws IOException {
+        synchronized (open) {
+            Segments segments = loaded.get(feedId);
+            if (segments == null) {
+                segments = new Segments(new File(new File(root,
+                        Common.encodeURL(feedId)), SEGMENT_DIR), segmentSize);
+                loaded.put(feedId, segments);
+            }
+            open.put(feedId, segments); // most recently used
+            return segments;
+        }
+    }
+
+    /**
+     * Runs the specified task holding the lock on the segments of the
+     * specified feed, reloading them if they were unloaded concurrently so
+     * that only one instance ever writes to a feed's files.
+     */
+    private <T> T withSegments(String feedId, SegmentsTask<T> task)
+            throws IOException {
+        while (true) {
+            Segments segments = getSegments(feedId);
+            synchronized (segments) {
+                if (!segments.evicted) {
+                    return task.run(segments);
+                }
+            }
+        }
+    }
+
+    private static abstract class SegmentsTask<T> {
+        abstract T run(Segments segments) throws IOException;
+    }
+
+    /**
+     * Timelines and segment files do not support query, mention, tag, or
+     * verb filters.
+     */
+    private static void checkUnfiltered(String query, String[] mentions,
+            String[] tags, String verb) {
+        if (query != null || mentions != null || tags != null || verb != null) {
+            throw new IllegalArgumentException(
+                    "Filtered queries are not supported");
+        }
+    }
+
+    public String[] getFeedIds(int start, int length) {
+        return files.getFeedIds(start, length);
+    }
+
+    public String[] getCategories(int start, int length) {
+        return files.getCategories(start, length);
+    }
+
+    public int getEntryCount(Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb) {
+        // not supported
+        return -1;
+    }
+
+    public String[] getEntryIds(int start, int length, Date after, Date before,
+            String query, String[] mentions, String[] tags, String verb) {
+        // not supported
+        return null;
+    }
+
+    public int getEntryCountForFeedId(String feedId, Date after, Date before,
+            String query, String[] mentions, String[] tags, String verb) {
+        checkUnfiltered(query, mentions, tags, verb);
+        try {
+            return getSegments(feedId).timeline.count(getTime(after),
+                    getTime(before));
+        } catch (IOException e) {
+            log.error("Could not open segments for feed: " + feedId, e);
+            return -1;
+        }
+    }
+
+    public long[] getEntryIdsForFeedId(String feedId, int start, int length,
+            Date after, Date before, String query, String[] mentions,
+            String[] tags, String verb) {
+        if (start < 0 || length < 1) {
+            throw new IllegalArgumentException("Invalid range: start: " + start
+                    + " : length: " + length);
+        }
+        checkUnfiltered(query, mentions, tags, verb);
+        try {
+            return getSegments(feedId).timeline.getEntryIds(start, length,
+                    getTime(after), getTime(before));
+        } catch (IOException e) {
+            log.error("Could not open segments for feed: " + feedId, e);
+            return null;
+        }
+    }
+
+    public long[] getNextEntryIdsForFeedId(String feedId, long lastEntryId,
+            int length, Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb) {
+        if (length < 1) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        checkUnfiltered(query, mentions, tags, verb);
+        try {
+            return getSegments(feedId).timeline.getNextEntryIds(lastEntryId,
+                    length, getTime(after), getTime(before));
+        } catch (IOException e) {
+            log.error("Could not open segments for feed: " + feedId, e);
+            return null;
+        }
+    }
+
+    private static long getTime(Date date) {
+        return date != null ? date.getTime() : 0;
+    }
+
+    public String readFeed(String feedId) throws FileNotFoundException,
+            IOException {
+        return files.readFeed(feedId);
+    }
+
+    public void updateFeed(String feedId, Date lastUpdated, String feed)
+            throws FileNotFoundException, IOException {
+        files.updateFeed(feedId, lastUpdated, feed);
+    }
+
+    public String[] readFeedValidators(String feedId) throws IOException {
+        return files.readFeedValidators(feedId);
+    }
+
+    public void updateFeedValidators(String feedId, String entityTag,
+            String lastModified) throws IOException {
+        files.updateFeedValidators(feedId, entityTag, lastModified);
+    }
+
+    public String readEntry(String feedId, final long entryId)
+            throws FileNotFoundException, IOException {
+        byte[] bytes = withSegments(feedId, new SegmentsTask<byte[]>() {
+            byte[] run(Segments segments) throws IOException {
+                return segments.read(entryId);
+            }
+        });
+        if (bytes == null) {
+            throw new FileNotFoundException("Entry not found: " + feedId
+                    + " : " + Long.toHexString(entryId));
+        }
+        return new String(bytes, UTF8);
+    }
+
+    public boolean containsEntry(String feedId, long entryId)
+            throws IOException {
+        return getSegments(feedId).contains(entryId);
+    }
+
+    public boolean containsEntry(String feedId, final long entryId,
+            final String signatureValue) throws IOException {
+        return withSegments(feedId, new SegmentsTask<Boolean>() {
+            Boolean run(Segments segments) throws IOException {
+                return segments.containsSignature(entryId, signatureValue);
+            }
+        });
+    }
+
+    public void updateEntry(String feedId, final long entryId,
+            Date publishDate, String entry) throws IOException {
+        final long date = getPublishTime(publishDate);
+        final byte[] bytes = entry.getBytes(UTF8);
+        final String signatureValue = Common.getSignatureValue(entry);
+        withSegments(feedId, new SegmentsTask<Void>() {
+            Void run(Segments segments) throws IOException {
+                segments.append(entryId, date, bytes, signatureValue);
+                return null;
+            }
+        });
+    }
+
+    public void updateEntries(String feedId, final List<EntryRecord> entries)
+            throws IOException {
+        withSegments(feedId, new SegmentsTask<Void>() {
+            Void run(Segments segments) throws IOException {
+                for (EntryRecord entry : entries) {
+                    segments.append(entry.getEntryId(),
+                            getPublishTime(entry.getPublishDate()), entry
+                                    .getContent().getBytes(UTF8), Common
+                                    .getSignatureValue(entry.getContent()));
+                }
+                // make the whole batch durable at once
+                segments.sync();
+                return null;
+            }
+        });
+    }
+
+    private static long getPublishTime(Date publishDate) {
+        // like file modification times, default to now
+        return publishDate != null ? publishDate.getTime() : System
+                .currentTimeMillis();
+    }
+
+    public void deleteEntry(String feedId, final long entryId)
+            throws IOException {
+        withSegments(feedId, new SegmentsTask<Void>() {
+            Void run(Segments segments) throws IOException {
+                segments.delete(entryId);
+                return null;
+            }
+        });
+        files.deleteFeedEntryResources(feedId, entryId);
+    }
+
+    public String readFeedEntryResourceType(String feedId, long entryId,
+            String resourceId) throws FileNotFoundException, IOException {
+        return files.readFeedEntryResourceType(feedId, entryId, resourceId);
+    }
+
+    public InputStream readFeedEntryResource(String feedId, long entryId,
+            String resourceId) throws FileNotFoundException, IOException {
+        return files.readFeedEntryResource(feedId, entryId, resourceId);
+    }
+
+    public ResourceDescriptor readFeedEntryResourceDescriptor(String feedId,
+            long entryId, String resourceId) throws FileNotFoundException,
+            IOException {
+        return files.readFeedEntryResourceDescriptor(feedId, entryId,
+                resourceId);
+    }
+
+    public void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimeType, Date publishDate, byte[] data)
+            throws IOException {
+        files.updateFeedEntryResource(feedId, entryId, resourceId, mimeType,
+                publishDate, data);
+    }
+
+    public void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimeType, Date publishDate, File data,
+            byte[] digest) throws IOException {
+        files.updateFeedEntryResource(feedId, entryId, resourceId, mimeType,
+                publishDate, data, digest);
+    }
+
+    public void deleteFeedEntryResource(String feedId, long entryId,
+            String resourceId) throws IOException {
+        files.deleteFeedEntryResource(feedId, entryId, resourceId);
+    }
+
+    /**
+     * Location of an entry's contents within the segments of a feed.
+     */
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+        final long date;
+
+        Location(int segment, long offset, int length, long date) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.date = date;
+        }
+    }
+
+    /**
+     * The segments and index log of a single feed. All methods synchronize on
+     * this instance, and files are opened as needed; the directory is not
+     * created until the first write.
+     */
+    private static class Segments {
+        final File directory;
+        final long segmentSize;
+        final FeedTimeline timeline;
+        final Map<Long, Location> locations = new HashMap<Long, Location>();
+        final Map<Integer, FileChannel> channels = new HashMap<Integer, FileChannel>();
+        final Set<Integer> unsynced = new HashSet<Integer>();
+        FileChannel index;
+        int active;
+        long activeLength;
+        long liveBytes;
+        long totalBytes;
+        boolean evicted;
+
+        Segments(File directory, long segmentSize) throws IOException {
+            this.directory = directory;
+            this.segmentSize = segmentSize;
+            File indexFile = new File(directory, INDEX_FILE);
+            boolean exists = indexFile.exists();
+            if (exists) {
+                replay();
+            }
+            long[] dates = new long[locations.size()];
+            long[] ids = new long[locations.size()];
+            int i = 0;
+            for (Map.Entry<Long, Location> e : locations.entrySet()) {
+                ids[i] = e.getKey();
+                dates[i++] = e.getValue().date;
+            }
+            timeline = new FeedTimeline(dates, ids);
+            if (!exists) {
+                importEntryFiles();
+            }
+        }
+
+        /**
+         * Rebuilds the in-memory index from the index log, discarding any
+         * trailing partial record or record pointing past the end of its
+         * segment, as left by an interrupted write.
+         */
+        private void replay() throws IOException {
+            Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+            File[] segmentFiles = directory.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    return file.getName().endsWith(SEGMENT_SUFFIX);
+                }
+            });
+            for (File file : segmentFiles) {
+                String name = file.getName();
+                int segment = Integer.parseInt(name.substring(0, name.length()
+                        - SEGMENT_SUFFIX.length()));
+                sizes.put(segment, file.length());
+                active = Math.max(active, segment);
+                totalBytes += file.length();
+            }
+            Long size = sizes.get(active);
+            activeLength = size != null ? size : 0;
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH * 256);
+            FileChannel index = getIndex();
+            long position = 0;
+            long valid = 0;
+            boolean truncated = false;
+            int read;
+            while (!truncated && (read = index.read(buffer, position)) > 0) {
+                // any partial record is carried over by compact()
+                position += read;
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_LENGTH) {
+                    long entryId = buffer.getLong();
+                    long date = buffer.getLong();
+                    int segment = buffer.getInt();
+                    long offset = buffer.getLong();
+                    int length = buffer.getInt();
+                    byte flag = buffer.get();
+                    if (flag == PUT) {
+                        size = sizes.get(segment);
+                        if (size == null || offset + length > size) {
+                            truncated = true;
+                            break;
+                        }
+                        Location previous = locations.put(entryId,
+                                new Location(segment, offset, length, date));
+                        liveBytes += length;
+                        if (previous != null) {
+                            liveBytes -= previous.length;
+                        }
+                    } else {
+                        Location previous = locations.remove(entryId);
+                        if (previous != null) {
+                            liveBytes -= previous.length;
+                        }
+                    }
+                    valid += RECORD_LENGTH;
+                }
+                buffer.compact();
+            }
+            if (valid < index.size()) {
+                log.warn("Discarding incomplete index records: " + directory);
+                index.truncate(valid);
+            }
+        }
+
+        /**
+         * Moves any entries stored one per file by FileStorage into segments.
+         */
+        private void importEntryFiles() throws IOException {
+            File[] entryFiles = directory.getParentFile().listFiles(
+                    new FileFilter() {
+                        public boolean accept(File file) {
+                            return file.getName().toLowerCase()
+                                    .endsWith(FileStorage.ENTRY_SUFFIX);
+                        }
+                    });
+            if (entryFiles == null || entryFiles.length == 0) {
+                return;
+            }
+            log.info("Importing " + entryFiles.length + " entries: "
+                    + directory);
+            int suffix = FileStorage.ENTRY_SUFFIX.length();
+            for (File file : entryFiles) {
+                String name = file.getName();
+                long entryId = Long.parseLong(
+                        name.substring(0, name.length() - suffix), 16);
+                append(entryId, file.lastModified(),
+                        Files.readAllBytes(file.toPath()), null);
+            }
+            // the originals go only once every segment is durable
+            sync();
+            for (File file : entryFiles) {
+                file.delete();
+            }
+        }
+
+        synchronized boolean contains(long entryId) {
+            return locations.containsKey(entryId);
+        }
+
+        /**
+         * Returns true if the specified entry is stored with the specified
+         * signature value, reading the entry only the first time if its
+         * signature value is not yet known.
+         */
+        synchronized boolean containsSignature(long entryId,
+                String signatureValue) throws IOException {
+            Boolean matches = timeline.matchesSignature(entryId,
+                    signatureValue);
+            if (matches == null) {
+                byte[] bytes = read(entryId);
+                if (bytes == null) {
+                    return false;
+                }
+                String stored = Common.getSignatureValue(new String(bytes,
+                        UTF8));
+                timeline.setSignature(entryId, stored, timeline.getModCount());
+                matches = signatureValue.equals(stored);
+            }
+            return matches;
+        }
+
+        synchronized byte[] read(long entryId) throws IOException {
+            Location location = locations.get(entryId);
+            if (location == null) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(location.length);
+            FileChannel channel = getChannel(location.segment);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of segment: "
+                            + directory + " : " + location.segment);
+                }
+            }
+            return buffer.array();
+        }
+
+        /**
+         * Appends the specified entry with its signature value, or null if
+         * not known.
+         */
+        synchronized void append(long entryId, long date, byte[] bytes,
+                String signatureValue) throws IOException {
+            if (activeLength > 0 && activeLength + bytes.length > segmentSize) {
+                // start a new segment
+                active++;
+                activeLength = 0;
+            }
+            long offset = activeLength;
+            write(getChannel(active), ByteBuffer.wrap(bytes), offset);
+            unsynced.add(active);
+            activeLength += bytes.length;
+            totalBytes += bytes.length;
+            writeRecord(entryId, date, active, offset, bytes.length, PUT);
+
+            Location previous = locations.put(entryId, new Location(active,
+                    offset, bytes.length, date));
+            liveBytes += bytes.length;
+            if (previous != null) {
+                liveBytes -= previous.length;
+            }
+            timeline.put(entryId, date, signatureValue);
+        }
+
+        synchronized void delete(long entryId) throws IOException {
+            Location previous = locations.remove(entryId);
+            if (previous != null) {
+                writeRecord(entryId, previous.date, previous.segment,
+                        previous.offset, previous.length, DELETE);
+                liveBytes -= previous.length;
+                timeline.remove(entryId);
+            }
+        }
+
+        /**
+         * Forces every segment written since the last sync, and then the
+         * index log, so no record can outlive the entry it points to.
+         */
+        synchronized void sync() throws IOException {
+            for (Integer segment : unsynced) {
+                getChannel(segment).force(false);
+            }
+            unsynced.clear();
+            if (index != null) {
+                index.force(false);
+            }
+        }
+
+        /**
+         * Rewrites all live entries into new segments with a new index log
+         * if at least half of the existing segments is dead space.
+         */
+        synchronized void compactIfNeeded() throws IOException {
+            if (evicted || totalBytes < MIN_COMPACT_SIZE
+                    || liveBytes * 2 > totalBytes) {
+                return;
+            }
+            log.info("Compacting segments: " + directory + " : " + liveBytes
+                    + " of " + totalBytes + " bytes live");
+
+            // write live entries to new segments and a new index
+            int first = active + 1;
+            int segment = first;
+            long length = 0;
+            File tmpIndex = new File(directory, INDEX_FILE + ".tmp");
+            FileChannel newIndex = FileChannel.open(tmpIndex.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            Map<Long, Location> newLocations = new HashMap<Long, Location>();
+            Map<Integer, FileChannel> newChannels = new HashMap<Integer, FileChannel>();
+            try {
+                ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+                long indexPosition = 0;
+                for (Map.Entry<Long, Location> e : locations.entrySet()) {
+                    Location location = e.getValue();
+                    byte[] bytes = read(e.getKey());
+                    if (length > 0 && length + bytes.length > segmentSize) {
+                        segment++;
+                        length = 0;
+                    }
+                    FileChannel channel = newChannels.get(segment);
+                    if (channel == null) {
+                        channel = openChannel(segment);
+                        newChannels.put(segment, channel);
+                    }
+                    write(channel, ByteBuffer.wrap(bytes), length);
+                    fillRecord(record, e.getKey(), location.date, segment,
+                            length, bytes.length, PUT);
+                    write(newIndex, record, indexPosition);
+                    indexPosition += RECORD_LENGTH;
+                    newLocations.put(e.getKey(), new Location(segment, length,
+                            bytes.length, location.date));
+                    length += bytes.length;
+                }
+                for (FileChannel channel : newChannels.values()) {
+                    channel.force(false);
+                }
+                newIndex.force(false);
+            } catch (IOException e) {
+                // abandon the new segments
+                newIndex.close();
+                tmpIndex.delete();
+                for (Map.Entry<Integer, FileChannel> c : newChannels
+                        .entrySet()) {
+                    c.getValue().close();
+                    getSegmentFile(c.getKey()).delete();
+                }
+                throw e;
+            }
+            newIndex.close();
+
+            // swap in the new index, then discard the old segments
+            close();
+            Files.move(tmpIndex.toPath(), new File(directory, INDEX_FILE)
+                    .toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            for (File file : directory.listFiles()) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)
+                        && Integer.parseInt(name.substring(0, name.length()
+                                - SEGMENT_SUFFIX.length())) < first) {
+                    file.delete();
+                }
+            }
+            channels.putAll(newChannels);
+            unsynced.clear();
+            locations.clear();
+            locations.putAll(newLocations);
+            active = segment;
+            activeLength = length;
+            totalBytes = liveBytes;
+        }
+
+        /**
+         * Closes any open files and marks these segments as unloaded, so that
+         * no more changes are made through this instance.
+         */
+        synchronized void evict() {
+            evicted = true;
+            close();
+        }
+
+        /**
+         * Closes any open files; they are reopened when next needed.
+         */
+        synchronized void close() {
+            try {
+                for (FileChannel channel : channels.values()) {
+                    channel.close();
+                }
+                if (index != null) {
+                    index.close();
+                }
+            } catch (IOException e) {
+                log.error("Could not close segments: " + directory, e);
+            }
+            channels.clear();
+            index = null;
+        }
+
+        private void writeRecord(long entryId, long date, int segment,
+                long offset, int length, byte flag) throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+            fillRecord(record, entryId, date, segment, offset, length, flag);
+            FileChannel index = getIndex();
+            write(index, record, index.size());
+        }
+
+        private FileChannel getIndex() throws IOException {
+            if (index == null) {
+                directory.mkdirs();
+                index = FileChannel.open(
+                        new File(directory, INDEX_FILE).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            }
+            return index;
+        }
+
+        private static void fillRecord(ByteBuffer record, long entryId,
+                long date, int segment, long offset, int length, byte flag) {
+            record.clear();
+            record.putLong(entryId);
+            record.putLong(date);
+            record.putInt(segment);
+            record.putLong(offset);
+            record.putInt(length);
+            record.put(flag);
+            record.flip();
+        }
+
+        private static void write(FileChannel channel, ByteBuffer buffer,
+                long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        private FileChannel getChannel(int segment) throws IOException {
+            FileChannel channel = channels.get(segment);
+            if (channel == null) {
+                channel = openChannel(segment);
+                channels.put(segment, channel);
+            }
+            return channel;
+        }
+
+        private FileChannel openChannel(int segment) throws IOException {
+            directory.mkdirs();
+            return FileChannel.open(getSegmentFile(segment).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        private File getSegmentFile(int segment) {
+            return new File(directory, segment + SEGMENT_SUFFIX);
+        }
+    }
+
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(SegmentStorage.class);
+
+}
@@ -195,6 +195,8 @@ public class Server {
     public void start() {
         try {
             getJetty().start();
+            // resume any forwards pending from last time
+            TrsstAdapter.getForwardQueue();
         } catch (Exception e) {
             log.error("Error while starting server", e);
         }
@@ -203,10 +205,9 @@ public class Server {
     public void stop() {
         try {
             server.stop();
-            // task queue prevents exit unless stopped
-            if (TrsstAdapter.TASK_QUEUE != null) {
-                TrsstAdapter.TASK_QUEUE.cancel();
-            }
+            // stop any background fetches and forwards
+            TrsstAdapter.stopRelayScheduler();
+            TrsstAdapter.stopForwardQueue();
         } catch (Exception e) {
             log.error("Error while stopping server", e);
         }
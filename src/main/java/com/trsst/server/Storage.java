@@ -15,10 +15,12 @@
  */
 package com.trsst.server;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Storage handles all read and write persistence for a trsst server.
@@ -207,6 +209,48 @@ public interface Storage {
             Date after, Date before, String query, String[] mentions,
             String[] tags, String verb);
 
+    /**
+     * Return an array containing entry ids for the specified feed id that
+     * immediately follow the specified entry id in the ordering used by
+     * getEntryIdsForFeedId, with most recent entries first. Callers page
+     * through results by passing the last entry id of the previous page, so
+     * the cost of each page does not depend on how deep the page is.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param lastEntryId
+     *            the last entry id returned on the previous page.
+     * @param length
+     *            the number of entries to return following the specified
+     *            entry.
+     * @param after
+     *            (optional) restricts results to those entries posted after the
+     *            specified date, or null if no restriction.
+     * @param before
+     *            (optional) restricts results to those entries posted before
+     *            the specified date, or null if no restriction.
+     * @param query
+     *            (optional) a space-delimited string of query terms, or null if
+     *            for no query; query language is implementation-dependent, but
+     *            at minimum a single-term search returns only results that
+     *            contain the specified term.
+     * @param mentions
+     *            (optional) restricts results to those entries that contain all
+     *            of the specified mentions
+     * @param tags
+     *            (optional) restricts results to those entries that contain all
+     *            of the specified tags
+     * @param verb
+     *            (optional) restricts results to those entries that contain the
+     *            specified verb
+     * @return an array containing the matching entry ids; will contain no more
+     *         entries than the specified length, but may contain fewer entries,
+     *         or zero entries; null if error or feed not found.
+     */
+    long[] getNextEntryIdsForFeedId(String feedId, long lastEntryId,
+            int length, Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb);
+
     /**
      * Returns the contents of the unmodified feed element which was previously
      * passed to updateFeed for the specified feed; otherwise throws
@@ -244,6 +288,37 @@ public interface Storage {
     void updateFeed(String feedId, Date lastUpdated, String feed)
             throws IOException;
 
+    /**
+     * Returns the cache validators last received with the specified feed from
+     * its remote source, so a subsequent fetch can be made conditional.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @return a two-element array containing the entity tag and the last
+     *         modified date as sent by the source, either of which may be
+     *         null; or null if no validators are stored.
+     * @throws IOException
+     *             if an error occurs obtaining the validators.
+     */
+    String[] readFeedValidators(String feedId) throws IOException;
+
+    /**
+     * Stores the cache validators received with the specified feed from its
+     * remote source, replacing any existing validators. Specifying null for
+     * both removes any stored validators.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entityTag
+     *            the entity tag header value, or null if none.
+     * @param lastModified
+     *            the last modified header value, or null if none.
+     * @throws IOException
+     *             if an error occurs persisting the validators.
+     */
+    void updateFeedValidators(String feedId, String entityTag,
+            String lastModified) throws IOException;
+
     /**
      * Returns the contents of a signed entry element for the specified feed
      * which was previously passed to updateFeedEntry.
@@ -261,6 +336,43 @@ public interface Storage {
     String readEntry(String feedId, long entryId) throws FileNotFoundException,
             IOException;
 
+    /**
+     * Returns true if an entry with the specified id is stored for the
+     * specified feed. Callers use this to skip entries they already have, so
+     * implementors should answer without reading the entry's contents, e.g.
+     * from an in-memory index of each feed's entry ids.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the desired entry for the specified feed.
+     * @return true if the entry exists, otherwise false.
+     * @throws IOException
+     *             if a error occurs checking for the entry.
+     */
+    boolean containsEntry(String feedId, long entryId) throws IOException;
+
+    /**
+     * Returns true if an entry with the specified id is stored for the
+     * specified feed with the specified signature value. Callers use this to
+     * skip entries they already have in exactly the form received, so
+     * implementors should answer without reading and parsing the entry, e.g.
+     * by keeping the signature value of each entry in an in-memory index.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the desired entry for the specified feed.
+     * @param signatureValue
+     *            the signature value of the entry without whitespace.
+     * @return true if the entry exists with the same signature value,
+     *         otherwise false.
+     * @throws IOException
+     *             if a error occurs checking for the entry.
+     */
+    boolean containsEntry(String feedId, long entryId, String signatureValue)
+            throws IOException;
+
     /**
      * Receives the contents of a signed entry element to be stored and
      * associated with the specified feed and unique identifier for later
@@ -283,6 +395,23 @@ public interface Storage {
     void updateEntry(String feedId, long entryId, Date publishDate, String entry)
             throws IOException;
 
+    /**
+     * Receives the contents of one or more signed entry elements to be stored
+     * and associated with the specified feed, as if by calling updateEntry()
+     * for each entry in turn. Implementors should persist the whole batch as
+     * a single operation where possible, e.g. with one index commit or one
+     * directory sync, since feeds are usually pushed many entries at a time.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entries
+     *            the entries whose contents are to be persisted.
+     * @throws IOException
+     *             if a error occurs persisting the entry data.
+     */
+    void updateEntries(String feedId, List<EntryRecord> entries)
+            throws IOException;
+
     /**
      * Delete an existing entry for the specified feed.
      * 
@@ -338,6 +467,28 @@ public interface Storage {
     InputStream readFeedEntryResource(String feedId, long entryId,
             String resourceId) throws FileNotFoundException, IOException;
 
+    /**
+     * Returns a descriptor of the resource data for the specified entry for
+     * the specified feed, providing its mime type, length, and modification
+     * date without reading the data, and a channel to read the data when
+     * needed.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the specified entry.
+     * @param resourceId
+     *            the desired resource id for the specified feed and entry.
+     * @return a descriptor of the resource.
+     * @throws FileNotFoundException
+     *             if the specified resource does not exist on this server.
+     * @throws IOException
+     *             if a error occurs obtaining the resource metadata.
+     */
+    ResourceDescriptor readFeedEntryResourceDescriptor(String feedId,
+            long entryId, String resourceId) throws FileNotFoundException,
+            IOException;
+
     /**
      * Stores a binary resource for the specified feed and entry for later
      * retrieval by readFeedEntryResource().
@@ -362,6 +513,36 @@ public interface Storage {
             String resourceId, String mimeType, Date publishDate, byte[] data)
             throws IOException;
 
+    /**
+     * Stores a binary resource for the specified feed and entry for later
+     * retrieval by readFeedEntryResource(), taking ownership of the specified
+     * file: implementors move the file into place where possible, so large
+     * resources are never copied through memory, and otherwise copy and then
+     * delete it.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the specified entry.
+     * @param resourceId
+     *            the desired resource id for the specified feed and entry.
+     * @param mimeType
+     *            the mime type of the data if known, otherwise null.
+     * @param publishDate
+     *            the datetime when the associated entry says it was or will be
+     *            published; used for date/time range queries
+     * @param data
+     *            a file whose contents are to be persisted.
+     * @param digest
+     *            the ripemd160 digest of the contents of the file if known,
+     *            otherwise null.
+     * @throws IOException
+     *             if a error occurs persisting the resource data.
+     */
+    void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimeType, Date publishDate, File data,
+            byte[] digest) throws IOException;
+
     /**
      * Delete an existing resource for the specified feed and entry.
      * 
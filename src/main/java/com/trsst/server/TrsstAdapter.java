@@ -18,24 +18,38 @@ package com.trsst.server;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.namespace.QName;
@@ -53,6 +67,7 @@ import org.apache.abdera.model.Entry;
 import org.apache.abdera.model.Feed;
 import org.apache.abdera.model.Link;
 import org.apache.abdera.model.Person;
+import org.apache.abdera.model.Source;
 import org.apache.abdera.model.Text;
 import org.apache.abdera.parser.ParseException;
 import org.apache.abdera.protocol.server.ProviderHelper;
@@ -60,11 +75,14 @@ import org.apache.abdera.protocol.server.RequestContext;
 import org.apache.abdera.protocol.server.RequestContext.Scope;
 import org.apache.abdera.protocol.server.ResponseContext;
 import org.apache.abdera.protocol.server.TargetType;
+import org.apache.abdera.protocol.server.context.AbstractResponseContext;
+import org.apache.abdera.protocol.server.context.EmptyResponseContext;
 import org.apache.abdera.protocol.server.context.MediaResponseContext;
 import org.apache.abdera.protocol.server.context.RequestContextWrapper;
 import org.apache.abdera.protocol.server.context.ResponseContextException;
 import org.apache.abdera.protocol.server.context.StreamWriterResponseContext;
 import org.apache.abdera.security.AbderaSecurity;
+import org.apache.abdera.security.SecurityException;
 import org.apache.abdera.security.Signature;
 import org.apache.abdera.security.SignatureOptions;
 import org.apache.abdera.util.Constants;
@@ -72,8 +90,13 @@ import org.apache.abdera.util.EntityTag;
 import org.apache.abdera.util.MimeTypeHelper;
 import org.apache.abdera.writer.StreamWriter;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
 
 import com.trsst.Common;
+import com.trsst.HttpPool;
 
 /**
  * Trsst-specific extensions to atompub, which mainly consists of accepting
@@ -94,7 +117,7 @@ import com.trsst.Common;
 public class TrsstAdapter extends AbstractMultipartAdapter {
 
     private final static Template paging_template = new Template(
-            "{collection}?{-join|&|q,verb,mention,tag,before,after,count,page}");
+            "{collection}?{-join|&|q,verb,mention,tag,before,after,count,page,cursor}");
 
     String feedId;
     Storage persistence;
@@ -152,7 +175,7 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         // otherwise fetch synchronously
         if (feed == null) {
             // attempt to fetch from relay peer
-            feed = fetchFromRelay(request);
+            feed = fetchFromRelay(request, false);
         }
 
         if (feed != null) {
@@ -170,13 +193,26 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         throw new FileNotFoundException("Not found: " + feedId);
     }
 
+    /**
+     * Returns a copy of the stored feed, parsing it only if no parsed copy of
+     * its current generation is cached.
+     */
     private Feed fetchFeedFromStorage(String feedId) {
-        Feed feed = null;
+        // capture generation before reading so any change invalidates
+        long generation = getFeedGeneration(feedId);
+        Feed feed = getCachedFeed(feedId, generation);
+        if (feed != null) {
+            return (Feed) feed.clone();
+        }
         try {
             log.debug("fetchFeedFromStorage: " + feedId);
             feed = (Feed) Abdera.getInstance().getParser()
                     .parse(new StringReader(persistence.readFeed(feedId)))
                     .getRoot();
+            // fully parse so cached copies are only ever read
+            feed.complete();
+            cacheFeed(feedId, generation, feed);
+            feed = (Feed) feed.clone();
         } catch (FileNotFoundException fnfe) {
             log.debug("Not found in local storage: " + feedId);
         } catch (ParseException e) {
@@ -191,41 +227,95 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
     /**
      * Called to trigger an asynchronous fetch, usually after we have returned
      * possibly stale data and we want to make sure it's refreshed on the next
-     * pull. This implementation uses a short fuse timer task queue, but others
-     * should implement a heuristic to queue this task for later based on the
-     * likelihood that a refetch is needed, e.g. factoring in time since last
-     * update and frequency of updates, etc.
+     * pull. This implementation skips the fetch unless the feed is due
+     * according to its observed update frequency, and otherwise uses a short
+     * fuse on a shared scheduler that coalesces fetches for the same feed.
      */
     protected void fetchLaterFromRelay(final String feedId,
             final RequestContext request) {
-        if (TASK_QUEUE == null) {
-            TASK_QUEUE = new Timer();
-        }
-        final String uri = request.getResolvedUri().toString();
-        log.debug("fetchLaterFromRelay: queuing: " + uri);
-        if (!COALESCING_TIMERS.containsKey(uri)) {
-            log.debug("fetchLaterFromRelay: creating: " + uri);
-            TimerTask task = new TimerTask() {
-                public void run() {
-                    log.debug("fetchLaterFromRelay: starting: " + uri);
-                    fetchFromRelay(request);
-                    COALESCING_TIMERS.remove(uri);
-                }
-            };
-            COALESCING_TIMERS.put(uri, task);
-            TASK_QUEUE.schedule(task, 6000); // six seconds
+        if (!REFRESH_PLANNER.isDue(feedId, System.currentTimeMillis())) {
+            log.debug("fetchLaterFromRelay: not yet due: " + feedId);
+            return;
+        }
+        String host = null;
+        if (Common.isExternalId(feedId)) {
+            try {
+                host = new URL(Common.decodeURL(feedId)).getHost();
+            } catch (MalformedURLException e) {
+                log.error("fetchLaterFromRelay: should never happen", e);
+            }
+        }
+        log.debug("fetchLaterFromRelay: queuing: " + feedId);
+        getRelayScheduler().schedule(feedId, host, new Runnable() {
+            public void run() {
+                fetchFromRelay(request, true);
+            }
+        }, 6000); // six seconds
+    }
+
+    private static RelayScheduler relayScheduler;
+
+    /**
+     * Tracks when each feed is next due to be fetched.
+     */
+    private static final RefreshPlanner REFRESH_PLANNER = new RefreshPlanner();
+
+    /**
+     * Returns the scheduler shared by all adapters for background fetches.
+     */
+    static synchronized RelayScheduler getRelayScheduler() {
+        if (relayScheduler == null) {
+            relayScheduler = new RelayScheduler();
+        }
+        return relayScheduler;
+    }
+
+    /**
+     * Stops any background fetches; a new scheduler is created if needed.
+     */
+    static synchronized void stopRelayScheduler() {
+        if (relayScheduler != null) {
+            relayScheduler.shutdown();
+            relayScheduler = null;
+        }
+    }
+
+    private static ForwardQueue forwardQueue;
+
+    /**
+     * Returns the queue shared by all adapters for forwarding posts to their
+     * home servers, resuming any forwards spooled before a restart.
+     */
+    static synchronized ForwardQueue getForwardQueue() {
+        if (forwardQueue == null) {
+            forwardQueue = new ForwardQueue(new File(Common.getServerRoot(),
+                    "forward"));
         }
+        return forwardQueue;
     }
 
-    public static Timer TASK_QUEUE;
-    private static Map<String, TimerTask> COALESCING_TIMERS = new Hashtable<String, TimerTask>();
+    /**
+     * Stops forwarding; pending forwards remain spooled until restarted.
+     */
+    static synchronized void stopForwardQueue() {
+        if (forwardQueue != null) {
+            forwardQueue.shutdown();
+            forwardQueue = null;
+        }
+    }
 
     /**
+     * Fetch the requested feed from a relay peer or, for external feeds, from
+     * the external source, and ingest the result.
      * 
      * @param request
-     * @return
+     *            the request to be relayed.
+     * @param conditional
+     *            if true, the fetch sends the validators stored for the feed
+     *            and returns the stored feed if the source reports no change.
+     * @return the fetched feed, or null if not found.
      */
-    private Feed fetchFromRelay(RequestContext request) {
+    private Feed fetchFromRelay(RequestContext request, boolean conditional) {
         Feed result = null;
         RequestContextWrapper wrapper = new RequestContextWrapper(request);
         int limit = 5; // arbitrary
@@ -245,10 +335,9 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         // if relay peer count is less than search limit
         List<String> relays = wrapper.getParameters("relay");
         if (relays == null || relays.size() <= limit) {
-            URL relayPeer = getRelayPeer();
-            if (relayPeer != null) {
-                log.debug("Using relay peer: " + relayPeer);
-                result = fetchFromServiceUrl(request, relayPeer);
+            List<URL> relayPeers = getRelayPeers();
+            if (!relayPeers.isEmpty()) {
+                result = fetchFromRelayPeers(request, relayPeers, conditional);
             } else {
                 log.debug("No relay peer available for request: "
                         + request.getResolvedUri());
@@ -259,12 +348,12 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             if (Common.isExternalId(feedId)) {
                 // attempt to fetch directly
                 log.debug("Fetching direct: " + feedId);
-                result = fetchFromExternalSource(feedId);
+                result = fetchFromExternalSource(feedId, conditional);
             }
         }
 
-        // if we got a result
-        if (result != null) {
+        // if we got a new result
+        if (result != null && result != NOT_MODIFIED) {
             try {
                 if (Common.isExternalId(feedId)) {
                     // convert from rss if needed
@@ -282,52 +371,196 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                 }
             } catch (Throwable t) {
                 log.error("Could not ingest feed: " + feedId, t);
+                // validators no longer describe what we have stored
+                try {
+                    persistence.updateFeedValidators(feedId, null, null);
+                } catch (IOException ioe) {
+                    log.error("Could not clear validators: " + feedId, ioe);
+                }
             }
         }
 
+        if (result == NOT_MODIFIED) {
+            log.debug("Not modified since last fetch: " + feedId);
+            result = fetchFeedFromStorage(feedId);
+        }
+
+        // plan the next fetch
+        long now = System.currentTimeMillis();
+        if (result != null) {
+            long updated = 0;
+            if (result.getUpdated() != null) {
+                updated = result.getUpdated().getTime();
+            }
+            REFRESH_PLANNER.fetched(feedId, updated, persistence
+                    .getEntryIdsForFeedId(feedId, 0, 8, null, null, null, null,
+                            null, null), now);
+        } else {
+            REFRESH_PLANNER.failed(feedId, now);
+        }
+
         return result;
     }
 
     /**
-     * Returns a relay peer to use to fetch contents. Implementors should return
-     * a url chosen from an evenly or randomly distributed mix of known trsst
-     * servers based on the home urls of this servers hosted content. This
-     * implementation currently returns a relay from the
-     * com.trsst.client.storage property, or null if the property does not
-     * exist.
+     * Returns the relay peers to use to fetch contents, in the order in which
+     * they should be tried. Implementors should return urls chosen from an
+     * evenly or randomly distributed mix of known trsst servers based on the
+     * home urls of this servers hosted content. This implementation currently
+     * returns the relays from the com.trsst.server.relays property, ordered by
+     * their observed latency and reliability, or an empty list if the property
+     * does not exist.
      */
-    protected URL getRelayPeer() {
+    protected List<URL> getRelayPeers() {
         if (RELAYS == null) {
             String property = System.getProperty("com.trsst.server.relays");
-            if (property == null) {
-                RELAYS = new String[0];
-            } else {
-                RELAYS = property.split(",");
+            List<URL> relays = new LinkedList<URL>();
+            if (property != null) {
+                for (String relay : property.split(",")) {
+                    try {
+                        relays.add(new URL(relay.trim()));
+                    } catch (MalformedURLException e) {
+                        log.error("Ignoring invalid relay: " + relay, e);
+                    }
+                }
             }
+            RELAYS = relays.toArray(new URL[relays.size()]);
+        }
+        return RELAY_PEERS.order(RELAYS);
+    }
+
+    private static URL[] RELAYS;
+
+    /**
+     * Tracks latency and reliability of each relay peer.
+     */
+    private static final RelayPeers RELAY_PEERS = new RelayPeers();
+
+    /**
+     * The most relay peers asked at one time for a single request.
+     */
+    private static final int MAX_HEDGED = 2;
+
+    /**
+     * Runs fetches from relay peers while the requesting thread waits.
+     */
+    private static final ExecutorService HEDGE_EXECUTOR = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RelayFetch "
+                            + count.incrementAndGet());
+                    // never prevent exit
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Fetch the current request from the specified relay peers, returning the
+     * first valid feed. Starts with the first peer; if it fails, or has not
+     * answered within its usual latency, asks the next peer too, and so on.
+     * Once a peer answers, any other fetches are aborted. Requests for the
+     * feed itself, with no query, store the validators of the winning
+     * response, and if conditional send them.
+     */
+    private Feed fetchFromRelayPeers(RequestContext request, List<URL> peers,
+            boolean conditional) {
+        String relayPath = getRelayPath(request);
+        if (relayPath == null) {
+            return null;
         }
+        String query = request.getResolvedUri().getQuery();
+        // only the unqueried feed is tracked with validators
+        boolean plain = query == null || query.length() == 0;
+
+        CompletionService<Feed> completion = new ExecutorCompletionService<Feed>(
+                HEDGE_EXECUTOR);
+        Map<Future<Feed>, RelayFetch> running = new HashMap<Future<Feed>, RelayFetch>();
+        Iterator<URL> next = peers.iterator();
+        RelayFetch winner = null;
+        Feed result = null;
+        long hedgeDelay = 0;
         try {
-            if (RELAYS.length == 0) {
-                return null;
-            } else if (RELAYS.length == 1) {
-                return new URL(RELAYS[0]);
+            // each pass follows a start, a slow peer, or a failed peer
+            while (true) {
+                if (next.hasNext() && running.size() < MAX_HEDGED) {
+                    URL peer = next.next();
+                    log.debug("Using relay peer: " + peer);
+                    RelayFetch fetch = new RelayFetch(peer, new URL(
+                            peer.toString() + relayPath), plain && conditional);
+                    running.put(completion.submit(fetch), fetch);
+                    hedgeDelay = RELAY_PEERS.getHedgeDelay(peer);
+                }
+                if (running.isEmpty()) {
+                    break; // all peers failed
+                }
+                Future<Feed> done;
+                if (next.hasNext() && running.size() < MAX_HEDGED) {
+                    done = completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                } else {
+                    done = completion.take();
+                }
+                if (done == null) {
+                    log.debug("Relay peer is slow: hedging: " + feedId);
+                    continue;
+                }
+                RelayFetch fetch = running.remove(done);
+                Feed feed = done.get();
+                if (isRelayedFeed(feed)) {
+                    winner = fetch;
+                    result = feed;
+                    break;
+                }
+                // failed: try another now
             }
-            return new URL(RELAYS[RELAY_RANDOM.nextInt(RELAYS.length)]);
         } catch (MalformedURLException e) {
-            log.error("getRelayPeer: should never happen", e);
-            return null;
+            log.error("Could not construct relay fetch url: " + relayPath, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Unexpected error fetching from relay: " + feedId, e);
+        } finally {
+            for (RelayFetch fetch : running.values()) {
+                fetch.abort();
+            }
+        }
+        if (winner != null && plain && result != NOT_MODIFIED) {
+            rememberValidators(winner.method);
         }
+        return result;
     }
 
-    private static final Random RELAY_RANDOM = new Random();
-    private static String[] RELAYS;
+    /**
+     * Returns true if the specified feed is a valid response from a relay:
+     * either not modified, or for native feeds, a signed feed with the
+     * requested id. Signatures are verified when the feed is ingested.
+     */
+    private boolean isRelayedFeed(Feed feed) {
+        if (feed == null) {
+            return false;
+        }
+        if (feed == NOT_MODIFIED || Common.isExternalId(feedId)) {
+            return true;
+        }
+        if (feed.getId() == null
+                || !feedId.equals(Common.fromFeedUrn(feed.getId()))
+                || feed.getFirstChild(new QName(Common.NS_URI, Common.SIGN)) == null) {
+            log.warn("Relay returned unexpected feed: " + feedId + " : "
+                    + feed.getId());
+            return false;
+        }
+        return true;
+    }
 
     /**
-     * Fetch from the specified trsst service url, validate it, ingest it, and
-     * return the returned feed.
+     * Returns the path and query with which to relay the current request to
+     * a peer, adding ourself to the list of relays, or null if we are already
+     * in the list.
      */
-    private Feed fetchFromServiceUrl(RequestContext request, URL serviceUrl) {
-        Feed result = null;
-        log.trace("fetchFromServiceUrl: uri: " + request.getResolvedUri());
+    private String getRelayPath(RequestContext request) {
+        log.trace("getRelayPath: uri: " + request.getResolvedUri());
         IRI uri = request.getResolvedUri();
         String hostName = uri.getHost();
         // FLAG: hash name for a bit of extra obscurity
@@ -349,7 +582,7 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         if (queryString.indexOf("relay=" + hashName) != -1) {
             // if we're alerady in the list of relay peers
             log.error("Unexpected relay loopback: ignoring request");
-            return result;
+            return null;
         }
         if (queryString.length() > 0) {
             queryString = queryString + '&';
@@ -367,26 +600,61 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         if (!path.startsWith("/")) {
             path = "/" + path;
         }
+        return path + '?' + queryString;
+    }
 
-        try {
-            URL url = new URL(serviceUrl.toString() + path + '?' + queryString);
-            log.info("fetchFromServiceUrl: " + url);
-            InputStream input = url.openStream();
-            result = (Feed) Abdera.getInstance().getParser().parse(input)
-                    .getRoot();
-        } catch (FileNotFoundException fnfe) {
-            log.warn("Could not fetch from relay: " + feedId);
-        } catch (MalformedURLException urle) {
-            log.error("Could not construct relay fetch url: "
-                    + serviceUrl.toString() + '?' + queryString);
-        } catch (IOException ioe) {
-            log.error("Could not connect: " + feedId, ioe);
-        } catch (ClassCastException cce) {
-            log.error("Not a valid feed: " + feedId, cce);
-        } catch (Exception e) {
-            log.error("Could not process feed from relay: " + feedId, e);
+    /**
+     * Fetch of the current request from a single relay peer, which can be
+     * aborted if another peer answers first.
+     */
+    private class RelayFetch implements Callable<Feed> {
+        private final URL peer;
+        private final GetMethod method;
+        private final boolean conditional;
+        private volatile boolean aborted;
+
+        RelayFetch(URL peer, URL url, boolean conditional) {
+            this.peer = peer;
+            this.method = new GetMethod(url.toString());
+            this.conditional = conditional;
+        }
+
+        public Feed call() {
+            Feed result = null;
+            long start = System.currentTimeMillis();
+            try {
+                log.info("fetchFromServiceUrl: " + method.getURI());
+                result = fetchFeed(method, conditional);
+            } catch (FileNotFoundException fnfe) {
+                log.warn("Could not fetch from relay: " + feedId);
+            } catch (Exception e) {
+                if (aborted) {
+                    log.debug("Aborted fetch from relay: " + peer);
+                } else if (e instanceof IOException) {
+                    log.error("Could not connect: " + feedId, e);
+                } else if (e instanceof ClassCastException) {
+                    log.error("Not a valid feed: " + feedId, e);
+                } else {
+                    log.error("Could not process feed from relay: " + feedId,
+                            e);
+                }
+            }
+            long latency = System.currentTimeMillis() - start;
+            if (aborted) {
+                // losing to a faster peer counts against this one
+                RELAY_PEERS.aborted(peer, latency);
+            } else if (isRelayedFeed(result)) {
+                RELAY_PEERS.succeeded(peer, latency);
+            } else {
+                RELAY_PEERS.failed(peer, latency);
+            }
+            return result;
+        }
+
+        void abort() {
+            aborted = true;
+            method.abort();
         }
-        return result;
     }
 
     /**
@@ -394,17 +662,15 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
      * trsst feed, (optionally validate it), (optionally persist it), and return
      * the feed.
      */
-    private Feed fetchFromExternalSource(String feedId) {
+    private Feed fetchFromExternalSource(String feedId, boolean conditional) {
         Feed result = null;
         try {
             feedId = Common.decodeURL(feedId);
-            URL url = new URL(feedId);
-            InputStream input = url.openStream();
-            // byte[] content = Common.readFully(input);
-            // System.out.println(new String(content, "UTF-8"));
-            // input = new ByteArrayInputStream(content);
-            result = (Feed) Abdera.getInstance().getParser().parse(input)
-                    .getRoot();
+            GetMethod method = new GetMethod(new URL(feedId).toString());
+            result = fetchFeed(method, conditional);
+            if (result != NOT_MODIFIED) {
+                rememberValidators(method);
+            }
         } catch (FileNotFoundException fnfe) {
             log.warn("Could not fetch from external source: " + feedId);
         } catch (MalformedURLException urle) {
@@ -419,6 +685,72 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         return result;
     }
 
+    /**
+     * Execute the specified method and parse the returned feed. If
+     * conditional, sends the validators stored for the current feed, and
+     * returns NOT_MODIFIED if the source reports that the feed is unchanged,
+     * so an unchanged feed costs only a round trip.
+     */
+    private Feed fetchFeed(GetMethod method, boolean conditional)
+            throws IOException, ParseException {
+        try {
+            if (conditional) {
+                String[] validators = persistence.readFeedValidators(feedId);
+                if (validators != null) {
+                    if (validators[0] != null) {
+                        method.setRequestHeader("If-None-Match", validators[0]);
+                    }
+                    if (validators[1] != null) {
+                        method.setRequestHeader("If-Modified-Since",
+                                validators[1]);
+                    }
+                }
+            }
+            int status = HttpPool.getHttpClient().executeMethod(method);
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+                return NOT_MODIFIED;
+            }
+            if (status == HttpStatus.SC_NOT_FOUND) {
+                throw new FileNotFoundException(method.getURI().toString());
+            }
+            if (status != HttpStatus.SC_OK) {
+                throw new IOException("Unexpected response: " + status + " : "
+                        + method.getURI());
+            }
+            Document<Feed> document = Abdera.getInstance().getParser()
+                    .parse(method.getResponseBodyAsStream());
+            // parse fully before releasing the connection
+            document.complete();
+            return document.getRoot();
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Stores the validators returned with the response to the specified
+     * method, so the next fetch of the current feed can be conditional.
+     */
+    private void rememberValidators(HttpMethod method) {
+        try {
+            persistence.updateFeedValidators(feedId,
+                    getHeaderValue(method, "ETag"),
+                    getHeaderValue(method, "Last-Modified"));
+        } catch (IOException e) {
+            log.error("Could not store validators: " + feedId, e);
+        }
+    }
+
+    private static String getHeaderValue(HttpMethod method, String name) {
+        Header header = method.getResponseHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * Marker returned by a conditional fetch when the source is unchanged.
+     */
+    private static final Feed NOT_MODIFIED = Abdera.getInstance().newFeed();
+
     @Override
     public String getId(RequestContext request) {
         return feedId;
@@ -482,11 +814,39 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
      * to pagination.
      */
     public ResponseContext getFeed(RequestContext request) {
+        // capture generation before reading so any change invalidates
+        long generation = getFeedGeneration(feedId);
+        ResponseContext notModified = getNotModified(request, generation);
+        if (notModified != null) {
+            return notModified;
+        }
+        boolean cacheable = request.getParameter("sync") == null;
+        String uri = request.getResolvedUri().toString();
+        if (cacheable) {
+            CachedResponse cached = getCachedResponse(feedId, uri, generation);
+            if (cached != null) {
+                // trigger async fetch in case we're stale
+                fetchLaterFromRelay(feedId, request);
+                return cached.toResponse();
+            }
+        }
         try {
             Feed result = currentFeed(request);
             fetchEntriesFromStorage(request, result);
-            return ProviderHelper.returnBase(result, 200, result.getUpdated())
-                    .setEntityTag(ProviderHelper.calculateEntityTag(result));
+            feedServed(feedId, generation, result.getUpdated());
+            ResponseContext response = ProviderHelper.returnBase(result, 200,
+                    result.getUpdated()).setEntityTag(
+                    getEntityTag(request, generation));
+            if (cacheable) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                response.writeTo(output);
+                CachedResponse cached = new CachedResponse(generation,
+                        output.toByteArray(), response);
+                cacheResponse(uri, cached);
+                // serve the same bytes we cached
+                return cached.toResponse();
+            }
+            return response;
         } catch (IllegalArgumentException e) {
             log.debug("Bad request: " + feedId, e);
             return ProviderHelper.badrequest(request, e.getMessage());
@@ -508,6 +868,11 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
      * prolly should conform to spec.
      */
     public ResponseContext getEntry(RequestContext request) {
+        long generation = getFeedGeneration(feedId);
+        ResponseContext notModified = getNotModified(request, generation);
+        if (notModified != null) {
+            return notModified;
+        }
         // make a copy of the current template
         Feed result;
         try {
@@ -520,8 +885,9 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             } else {
                 return ProviderHelper.notfound(request);
             }
+            feedServed(feedId, generation, result.getUpdated());
             return ProviderHelper.returnBase(result, 200, result.getUpdated())
-                    .setEntityTag(ProviderHelper.calculateEntityTag(result));
+                    .setEntityTag(getEntityTag(request, generation));
         } catch (FileNotFoundException e) {
             log.debug("Could not find feed: " + feedId, e);
             return ProviderHelper.notfound(request);
@@ -534,6 +900,306 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         }
     }
 
+    /**
+     * Returns a not-modified response if the request's validators match the
+     * specified generation of this feed, or null if the request should be
+     * served. Requests with the sync parameter are always served. Answering
+     * from the generation alone means unchanged feeds are never read from
+     * storage or serialized; we still trigger a fetch in case we're stale.
+     */
+    private ResponseContext getNotModified(RequestContext request,
+            long generation) {
+        if (request.getParameter("sync") != null) {
+            return null;
+        }
+        EntityTag entityTag = getEntityTag(request, generation);
+        boolean matched = false;
+        EntityTag[] matches = request.getIfNoneMatch();
+        if (matches != null && matches.length > 0) {
+            matched = EntityTag.matchesAny(entityTag, matches, true);
+        } else {
+            Date since = request.getIfModifiedSince();
+            long updated = getFeedUpdated(feedId, generation);
+            // http dates have only second precision
+            matched = since != null && updated != 0
+                    && updated / 1000 <= since.getTime() / 1000;
+        }
+        if (!matched) {
+            return null;
+        }
+        fetchLaterFromRelay(feedId, request);
+        EmptyResponseContext result = new EmptyResponseContext(304);
+        result.setEntityTag(entityTag);
+        return result;
+    }
+
+    /**
+     * Returns a weak entity tag for the response to the specified request
+     * against the specified generation of this feed.
+     */
+    private static EntityTag getEntityTag(RequestContext request,
+            long generation) {
+        return new EntityTag(Long.toHexString(generation) + '-'
+                + Integer.toHexString(request.getUri().toString().hashCode()),
+                true);
+    }
+
+    /**
+     * Returns the current generation of the specified feed, assigning a new
+     * one if the feed is not yet tracked.
+     */
+    private static long getFeedGeneration(String feedId) {
+        synchronized (FEED_VERSIONS) {
+            long[] version = FEED_VERSIONS.get(feedId);
+            if (version == null) {
+                version = new long[] { FEED_GENERATION.incrementAndGet(), 0 };
+                FEED_VERSIONS.put(feedId, version);
+            }
+            return version[0];
+        }
+    }
+
+    /**
+     * Returns the updated time last served for the specified generation of
+     * the specified feed, or zero if not known.
+     */
+    private static long getFeedUpdated(String feedId, long generation) {
+        synchronized (FEED_VERSIONS) {
+            long[] version = FEED_VERSIONS.get(feedId);
+            if (version != null && version[0] == generation) {
+                return version[1];
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Records the updated time served for the specified generation of the
+     * specified feed, unless the feed has since changed.
+     */
+    private static void feedServed(String feedId, long generation,
+            Date updated) {
+        if (updated != null) {
+            synchronized (FEED_VERSIONS) {
+                long[] version = FEED_VERSIONS.get(feedId);
+                if (version != null && version[0] == generation) {
+                    version[1] = updated.getTime();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called after the specified feed or its entries are persisted, so that
+     * previously issued validators no longer match.
+     */
+    static void feedChanged(String feedId) {
+        synchronized (FEED_VERSIONS) {
+            FEED_VERSIONS.put(feedId,
+                    new long[] { FEED_GENERATION.incrementAndGet(), 0 });
+        }
+        synchronized (FEED_HEADERS) {
+            FEED_HEADERS.remove(feedId);
+        }
+        synchronized (RESPONSES) {
+            CachedPages pages = RESPONSES.remove(feedId);
+            if (pages != null) {
+                responsesSize -= pages.size;
+            }
+        }
+    }
+
+    /**
+     * Returns the cached parsed feed for the specified generation of the
+     * specified feed, or null if none. Callers must not modify it.
+     */
+    private static Feed getCachedFeed(String feedId, long generation) {
+        synchronized (FEED_HEADERS) {
+            CachedFeed cached = FEED_HEADERS.get(feedId);
+            if (cached != null && cached.generation == generation) {
+                return cached.feed;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Caches the specified parsed feed read at the specified generation,
+     * unless the feed has since changed.
+     */
+    private static void cacheFeed(String feedId, long generation, Feed feed) {
+        synchronized (FEED_VERSIONS) {
+            long[] version = FEED_VERSIONS.get(feedId);
+            if (version == null || version[0] != generation) {
+                return; // stale
+            }
+            synchronized (FEED_HEADERS) {
+                FEED_HEADERS.put(feedId, new CachedFeed(generation, feed));
+            }
+        }
+    }
+
+    private static class CachedFeed {
+        final long generation;
+        final Feed feed;
+
+        CachedFeed(long generation, Feed feed) {
+            this.generation = generation;
+            this.feed = feed;
+        }
+    }
+
+    /**
+     * Returns the cached response for the specified request uri of the
+     * specified feed if it was built at the specified generation of the feed,
+     * or null if none.
+     */
+    private static CachedResponse getCachedResponse(String feedId, String uri,
+            long generation) {
+        synchronized (RESPONSES) {
+            CachedPages pages = RESPONSES.get(feedId);
+            if (pages != null) {
+                CachedResponse cached = pages.responses.get(uri);
+                if (cached != null && cached.generation == generation) {
+                    return cached;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Caches the specified response for the specified request uri of the
+     * current feed, unless the feed has since changed, evicting the least
+     * recently used feeds to stay within budget.
+     */
+    private void cacheResponse(String uri, CachedResponse response) {
+        if (response.data.length > RESPONSES_MAX_SIZE / 16) {
+            return; // too large to be worth it
+        }
+        synchronized (FEED_VERSIONS) {
+            long[] version = FEED_VERSIONS.get(feedId);
+            if (version == null || version[0] != response.generation) {
+                return; // stale
+            }
+            synchronized (RESPONSES) {
+                CachedPages pages = RESPONSES.get(feedId);
+                if (pages == null) {
+                    pages = new CachedPages();
+                    RESPONSES.put(feedId, pages);
+                }
+                CachedResponse previous = pages.responses.put(uri, response);
+                long change = response.data.length;
+                if (previous != null) {
+                    change -= previous.data.length;
+                }
+                pages.size += change;
+                responsesSize += change;
+                while (responsesSize > RESPONSES_MAX_SIZE) {
+                    Iterator<CachedPages> i = RESPONSES.values().iterator();
+                    CachedPages eldest = i.next();
+                    if (eldest != pages) {
+                        responsesSize -= eldest.size;
+                        i.remove();
+                    } else {
+                        // only this feed is left: drop its oldest pages
+                        Iterator<CachedResponse> j = pages.responses
+                                .values().iterator();
+                        long length = j.next().data.length;
+                        j.remove();
+                        pages.size -= length;
+                        responsesSize -= length;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The cached responses for the pages of a single feed, keyed by request
+     * uri, least recently used first.
+     */
+    private static class CachedPages {
+        final Map<String, CachedResponse> responses = new LinkedHashMap<String, CachedResponse>(
+                16, 0.75f, true);
+        /** Total bytes held in responses. */
+        long size;
+    }
+
+    /**
+     * A serialized feed response and the headers needed to serve it again.
+     */
+    private static class CachedResponse {
+        final long generation;
+        final byte[] data;
+        final EntityTag entityTag;
+        final String contentType;
+        final Date lastModified;
+
+        CachedResponse(long generation, byte[] data, ResponseContext response) {
+            this.generation = generation;
+            this.data = data;
+            this.entityTag = response.getEntityTag();
+            this.contentType = String.valueOf(response.getContentType());
+            this.lastModified = response.getLastModified();
+        }
+
+        ResponseContext toResponse() {
+            MediaResponseContext result = new MediaResponseContext(data,
+                    entityTag, 200);
+            result.setContentType(contentType);
+            result.setLastModified(lastModified);
+            return result;
+        }
+    }
+
+    /**
+     * Serialized responses for recently requested feed pages, keyed by feed
+     * id so a change to a feed discards all of its pages at once; least
+     * recently used feeds evicted first, configurable in total bytes with the
+     * "com.trsst.server.responses" property.
+     */
+    private static final Map<String, CachedPages> RESPONSES = new LinkedHashMap<String, CachedPages>(
+            16, 0.75f, true);
+
+    private static final long RESPONSES_MAX_SIZE = Long.getLong(
+            "com.trsst.server.responses", 16 * 1024 * 1024);
+
+    /**
+     * Total bytes held in RESPONSES; guarded by RESPONSES.
+     */
+    private static long responsesSize;
+
+    /**
+     * Parsed feed documents from storage, without entries, for recently
+     * requested feeds.
+     */
+    private static final Map<String, CachedFeed> FEED_HEADERS = new LinkedHashMap<String, CachedFeed>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(
+                Map.Entry<String, CachedFeed> eldest) {
+            return size() > 1000;
+        }
+    };
+
+    /**
+     * Source of feed generations; seeded with the time so validators issued
+     * before a restart do not match.
+     */
+    private static final AtomicLong FEED_GENERATION = new AtomicLong(
+            System.currentTimeMillis());
+
+    /**
+     * Current generation and last served updated time for recently requested
+     * feeds; untracked feeds are assigned a new generation on request.
+     */
+    private static final Map<String, long[]> FEED_VERSIONS = new LinkedHashMap<String, long[]>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            return size() > 10000;
+        }
+    };
+
     private Document<Entry> getEntry(long entryId) {
         try {
             // NOTE: by this point currentFeed() will have fetched
@@ -554,21 +1220,56 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         return null;
     }
 
+    /**
+     * Spools uploads beside server storage so they can be moved into place.
+     */
+    @Override
+    protected File getSpoolDirectory() {
+        return new File(Common.getServerRoot(), "spool");
+    }
+
+    /**
+     * Spools a copy of the request only if the feed is to be forwarded; the
+     * copy is kept with the request for postMedia.
+     */
+    @Override
+    protected OutputStream getRequestCopy(Document<Source> source,
+            RequestContext request) throws IOException {
+        if (source.getRoot() instanceof Feed
+                && getForwardUrl((Feed) source.getRoot(), request) != null) {
+            File requestFile = createSpoolFile();
+            new RequestContextWrapper(request).setAttribute(Scope.REQUEST,
+                    "com.trsst.RequestFile", requestFile);
+            return new BufferedOutputStream(new FileOutputStream(requestFile));
+        }
+        return null;
+    }
+
     /**
      * Accepts a signed feed document containing one or more signed entries and
      * attachments for some or all of those entries.
      */
     public ResponseContext postMedia(RequestContext request) {
+        File requestFile = null;
+        List<MultipartRelatedPost> posts = null;
         try {
             if (MimeTypeHelper.isMultipart(request.getContentType().toString())) {
-                byte[] requestData = Common.readFully(request.getInputStream());
-                List<MultipartRelatedPost> posts = getMultipartRelatedData(
-                        request, new ByteArrayInputStream(requestData));
+                // parse as the request arrives, spooling only the data parts
+                InputStream requestData = new BufferedInputStream(
+                        request.getInputStream());
+                try {
+                    posts = getMultipartRelatedData(request, requestData);
+                } finally {
+                    requestData.close();
+                    requestFile = (File) new RequestContextWrapper(request)
+                            .getAttribute(Scope.REQUEST,
+                                    "com.trsst.RequestFile");
+                }
                 Feed incomingFeed = null;
                 if (posts != null) {
                     Map<String, Entry> contentIdToEntry = new HashMap<String, Entry>();
                     Map<String, String> contentIdToType = new HashMap<String, String>();
-                    Map<String, InputStream> contentIdToData = new HashMap<String, InputStream>();
+                    Map<String, MultipartRelatedPost> contentIdToData = new HashMap<String, MultipartRelatedPost>();
                     for (MultipartRelatedPost post : posts) {
                         String type = post.getDataHeaders().get("content-type");
                         String cid = post.getDataHeaders().get("content-id");
@@ -604,14 +1305,14 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                                     // getContentSrc resolves against baseurl
                                     contentIdToEntry.put(cid, entry);
                                     contentIdToType.put(cid, type);
-                                    contentIdToData.put(cid, post.getData());
+                                    contentIdToData.put(cid, post);
                                 }
                             }
                         }
                     }
                     // if all content ids match an entry content element
                     if (contentIdToEntry.size() == posts.size()) {
-                        ingestFeed(incomingFeed);
+                        ingestFeed(incomingFeed, true);
                         for (Map.Entry<String, Entry> i : contentIdToEntry
                                 .entrySet()) {
                             String cid = i.getKey();
@@ -627,16 +1328,18 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                                 // a file extension on enclosures)
                                 hash = hash.substring(0, dot);
                             }
-                            byte[] data = Common.readFully(contentIdToData
-                                    .get(cid));
+                            MultipartRelatedPost post = contentIdToData
+                                    .get(cid);
                             String digest = new Base64(0, null, true)
-                                    .encodeToString(Common.ripemd160(data));
+                                    .encodeToString(post.getDigest());
                             if (digest.equals(hash)) {
-                                // only store if hash matches content id
+                                // only store if hash matches content id:
+                                // storage takes ownership of spooled file
                                 persistence.updateFeedEntryResource(feedId,
                                         Common.toEntryId(entry.getId()), cid,
                                         contentIdToType.get(cid),
-                                        entry.getPublished(), data);
+                                        entry.getPublished(), post.getFile(),
+                                        post.getDigest());
                             } else {
                                 log.error("Content digests did not match: "
                                         + hash + " : " + digest);
@@ -645,7 +1348,7 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                                                 + hash);
                             }
                         }
-                        forwardIfNeeded(incomingFeed, request, requestData);
+                        forwardIfNeeded(incomingFeed, request, requestFile);
                         return ProviderHelper.returnBase(incomingFeed, 201,
                                 null);
                     }
@@ -655,6 +1358,12 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             log.error("postMedia: ", pe);
             return ProviderHelper.badrequest(request,
                     "Could not process multipart request: " + pe.getMessage());
+        } finally {
+            // remove whatever storage did not take
+            deleteSpoolFiles(posts);
+            if (requestFile != null) {
+                requestFile.delete();
+            }
         }
         return ProviderHelper.badrequest(request,
                 "Could not process multipart request");
@@ -675,6 +1384,28 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
      */
     protected void ingestFeed(Feed feed) throws XMLSignatureException,
             IllegalArgumentException, Exception {
+        ingestFeed(feed, false);
+    }
+
+    /**
+     * Validate then persist incoming feed and entries. Any exception thrown
+     * means no feed or entries are persisted.
+     * 
+     * @param feed
+     *            with zero or more entries to be validated and persisted.
+     * @param visible
+     *            if true, blocks until the persisted entries are visible to
+     *            subsequent reads; clients posting to us expect to read their
+     *            own writes, while relayed feeds can become visible later.
+     * @throws XMLSignatureException
+     *             if signature verification fails
+     * @throws IllegalArgumentException
+     *             if data validation fails
+     * @throws Exception
+     *             any other problem
+     */
+    protected void ingestFeed(Feed feed, boolean visible)
+            throws XMLSignatureException, IllegalArgumentException, Exception {
 
         // clone a copy so we can manipulate
         feed = (Feed) feed.clone();
@@ -701,85 +1432,118 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         }
 
         // verify that the key matches the id
-        PublicKey publicKey = Common.toPublicKeyFromX509(signingElement
-                .getText());
-        if (Common.fromFeedUrn(feed.getId()) == null
-                || !Common.fromFeedUrn(feed.getId()).equals(
-                        Common.toFeedId(publicKey))) {
+        SigningKey signingKey = getSigningKey(signingElement.getText());
+        if (!signingKey.feedId.equals(Common.fromFeedUrn(feed.getId()))) {
             throw new XMLSignatureException(
                     "Signing key does not match feed id: "
                             + Common.fromFeedUrn(feed.getId()) + " : "
-                            + Common.toFeedId(publicKey));
+                            + signingKey.feedId);
         }
 
-        // prep the verifier
-        AbderaSecurity security = new AbderaSecurity(Abdera.getInstance());
-        Signature signature = security.getSignature();
-        SignatureOptions options = signature.getDefaultSignatureOptions();
-        options.setSigningAlgorithm("http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha1");
-        options.setSignLinks(false);
-        options.setPublicKey(publicKey);
-
-        // validate, persist, and remove each entry
+        // verify entries in parallel, each from its own copy because
+        // parsed documents are not thread-safe, skipping any we've accepted
         List<Entry> entries = new LinkedList<Entry>();
         entries.addAll(feed.getEntries()); // make a copy
-        for (Entry entry : feed.getEntries()) {
-            if (!signature.verify(entry, options)) {
-                log.warn("Could not verify signature for entry with id: "
-                        + feedId);
-                throw new XMLSignatureException(
-                        "Could not verify signature for entry with id: "
-                                + entry.getId() + " : " + feedId);
+        List<String> verifiedKeys = new LinkedList<String>();
+        Map<String, Future<Boolean>> verifications = new LinkedHashMap<String, Future<Boolean>>();
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (isStored(entry)) {
+                // we already have this very entry: skip it entirely
+                entry.discard();
+                iterator.remove();
+                continue;
+            }
+            final String serialized = entry.toString();
+            final SignatureOptions options = signingKey.options;
+            String verifiedKey = getVerifiedKey(signingKey.feedId, entry
+                    .getId().toString(), serialized);
+            verifiedKeys.add(verifiedKey);
+            if (!isVerified(verifiedKey)) {
+                verifications.put(entry.getId().toString(), VERIFY_EXECUTOR
+                        .submit(new Callable<Boolean>() {
+                            public Boolean call() throws Exception {
+                                return verify(
+                                        (Entry) Abdera.getInstance()
+                                                .getParser()
+                                                .parse(new StringReader(
+                                                        serialized)).getRoot(),
+                                        options);
+                            }
+                        }));
             }
             // remove from feed parent
             entry.discard();
-            try {
-                // see if this file already exists
-                persistence.readEntry(feedId, Common.toEntryId(entry.getId()));
-                // this file exists; remove from processing
-                entries.remove(entry);
-            } catch (FileNotFoundException e) {
-                // file does not already exist: resume
-            }
         }
-        // setEditDetail(request, entry, key);
-        // String edit = entry.getEditLinkResolvedHref().toString();
+        try {
+            // remove all navigation links before signing
+            for (Link link : feed.getLinks()) {
+                if (Link.REL_FIRST.equals(link.getRel())
+                        || Link.REL_LAST.equals(link.getRel())
+                        || Link.REL_CURRENT.equals(link.getRel())
+                        || Link.REL_NEXT.equals(link.getRel())
+                        || Link.REL_PREVIOUS.equals(link.getRel())) {
+                    link.discard();
+                }
+            }
+            // remove all opensearch elements before verifying
+            for (Element e : feed
+                    .getExtensions("http://a9.com/-/spec/opensearch/1.1/")) {
+                e.discard();
+            }
 
-        // remove all navigation links before signing
-        for (Link link : feed.getLinks()) {
-            if (Link.REL_FIRST.equals(link.getRel())
-                    || Link.REL_LAST.equals(link.getRel())
-                    || Link.REL_CURRENT.equals(link.getRel())
-                    || Link.REL_NEXT.equals(link.getRel())
-                    || Link.REL_PREVIOUS.equals(link.getRel())) {
-                link.discard();
+            // meanwhile validate feed signature sans entries
+            if (!verify(feed, signingKey.options)) {
+                log.warn("Could not verify signature for feed with id: "
+                        + feedId);
+                throw new XMLSignatureException(
+                        "Could not verify signature for feed with id: "
+                                + feedId);
             }
-        }
-        // remove all opensearch elements before verifying
-        for (Element e : feed
-                .getExtensions("http://a9.com/-/spec/opensearch/1.1/")) {
-            e.discard();
-        }
 
-        // now validate feed signature sans entries
-        if (!signature.verify(feed, options)) {
-            log.warn("Could not verify signature for feed with id: " + feedId);
-            throw new XMLSignatureException(
-                    "Could not verify signature for feed with id: " + feedId);
+            // meanwhile remove entries we already have from processing
+            Iterator<Entry> i = entries.iterator();
+            while (i.hasNext()) {
+                // see if this entry already exists
+                if (persistence.containsEntry(feedId,
+                        Common.toEntryId(i.next().getId()))) {
+                    // this entry exists; remove from processing
+                    i.remove();
+                }
+            }
+
+            // now wait for all entries: all or nothing
+            for (Map.Entry<String, Future<Boolean>> verification : verifications
+                    .entrySet()) {
+                if (!verification.getValue().get()) {
+                    log.warn("Could not verify signature for entry with id: "
+                            + feedId);
+                    throw new XMLSignatureException(
+                            "Could not verify signature for entry with id: "
+                                    + verification.getKey() + " : " + feedId);
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            // no-op if done; otherwise stop verifying
+            for (Future<Boolean> verification : verifications.values()) {
+                verification.cancel(true);
+            }
         }
 
         // persist feed
         persistence.updateFeed(feedId, feed.getUpdated(), feed.toString());
-        // only now persist each entry
+        // only now persist all entries in a single batch
+        persistence.updateEntries(feedId, toEntryRecords(entries));
+        for (String verifiedKey : verifiedKeys) {
+            setVerified(verifiedKey);
+        }
         for (Entry entry : entries) {
-            Date date = entry.getPublished();
-            if (date == null) {
-                // fall back to updated if publish not set
-                date = entry.getUpdated();
-            }
-            persistence.updateEntry(feedId, Common.toEntryId(entry.getId()),
-                    date, entry.toString());
-
             // check for delete operation
             String verb = entry.getSimpleExtension(new QName(
                     "http://activitystrea.ms/spec/1.0/", "verb", "activity"));
@@ -805,6 +1569,243 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                 }
             }
         }
+
+        if (visible) {
+            waitUntilVisible();
+            feedChanged(feedId);
+        } else {
+            feedChangedWhenVisible(feedId);
+        }
+    }
+
+    /**
+     * Feeds waiting for their writes to become visible, with the index
+     * generation to wait for; guarded by synchronizing on the map itself. A
+     * feed appears at most once, so repeated ingests coalesce.
+     */
+    private static final Map<String, Long> PENDING_VISIBLE = new HashMap<String, Long>();
+
+    /**
+     * Waits for index refreshes on behalf of ingests, one feed at a time:
+     * waiting for a later generation makes the earlier ones visible too.
+     */
+    private static final ExecutorService VISIBLE_EXECUTOR = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Visible");
+                    // never prevent exit
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Calls feedChanged once all writes made so far are visible to searches,
+     * without blocking the caller, so that nothing read before then can be
+     * cached under the new generation.
+     */
+    private void feedChangedWhenVisible(final String feedId) {
+        if (!(persistence instanceof LuceneStorage)) {
+            feedChanged(feedId);
+            return;
+        }
+        final LuceneStorage storage = (LuceneStorage) persistence;
+        synchronized (PENDING_VISIBLE) {
+            if (PENDING_VISIBLE.put(feedId, storage.getGeneration()) != null) {
+                // already queued: it will wait for the newer generation
+                return;
+            }
+        }
+        VISIBLE_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                long generation;
+                do {
+                    synchronized (PENDING_VISIBLE) {
+                        generation = PENDING_VISIBLE.get(feedId);
+                    }
+                    try {
+                        storage.waitForGeneration(generation);
+                    } catch (InterruptedIOException e) {
+                        log.warn("Interrupted waiting for: " + feedId);
+                    }
+                    feedChanged(feedId);
+                } while (!removePending(feedId, generation));
+            }
+        });
+    }
+
+    /**
+     * Removes the specified feed from those waiting to become visible, unless
+     * it was changed again after the specified generation.
+     */
+    private static boolean removePending(String feedId, long generation) {
+        synchronized (PENDING_VISIBLE) {
+            if (PENDING_VISIBLE.get(feedId).longValue() != generation) {
+                return false;
+            }
+            PENDING_VISIBLE.remove(feedId);
+            return true;
+        }
+    }
+
+    /**
+     * Returns true if the specified entry is already stored with the same
+     * signature value: such entries were verified when first stored, and
+     * entries are never stored with content other than what was signed.
+     */
+    private boolean isStored(Entry entry) throws IOException {
+        String signatureValue = getSignatureValue(entry);
+        if (signatureValue == null) {
+            return false;
+        }
+        return persistence.containsEntry(feedId,
+                Common.toEntryId(entry.getId()), signatureValue);
+    }
+
+    /**
+     * Returns the signature value of the specified entry without whitespace,
+     * or null if not signed.
+     */
+    private static String getSignatureValue(Entry entry) {
+        Element element = entry.getFirstChild(new QName(
+                "http://www.w3.org/2000/09/xmldsig#", "Signature"));
+        if (element != null) {
+            element = element.getFirstChild(new QName(
+                    "http://www.w3.org/2000/09/xmldsig#", "SignatureValue"));
+            if (element != null) {
+                return element.getText().replaceAll("\\s", "");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the specified element's signature is valid with the
+     * specified options. Safe to call concurrently for different elements.
+     */
+    private static boolean verify(Element element, SignatureOptions options)
+            throws SecurityException {
+        return SIGNATURE.verify(element, options);
+    }
+
+    /**
+     * Returns the decoded public key, feed id, and verification options for
+     * the specified X.509-encoded signing key, so each is derived only once.
+     */
+    private static SigningKey getSigningKey(String x509)
+            throws GeneralSecurityException, SecurityException {
+        x509 = x509.trim();
+        synchronized (SIGNING_KEYS) {
+            SigningKey result = SIGNING_KEYS.get(x509);
+            if (result != null) {
+                return result;
+            }
+        }
+        SigningKey result = new SigningKey(Common.toPublicKeyFromX509(x509));
+        synchronized (SIGNING_KEYS) {
+            SIGNING_KEYS.put(x509, result);
+        }
+        return result;
+    }
+
+    private static class SigningKey {
+        final String feedId;
+        final SignatureOptions options;
+
+        SigningKey(PublicKey publicKey) throws SecurityException {
+            this.feedId = Common.toFeedId(publicKey);
+            // never modified after construction, so safe to share
+            this.options = SIGNATURE.getDefaultSignatureOptions();
+            options.setSigningAlgorithm("http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha1");
+            options.setSignLinks(false);
+            options.setPublicKey(publicKey);
+        }
+    }
+
+    /**
+     * Verifies signatures; holds no state of its own, so is shared.
+     */
+    private static final Signature SIGNATURE = new AbderaSecurity(
+            Abdera.getInstance()).getSignature();
+
+    /**
+     * Recently seen signing keys by their X.509 encoding.
+     */
+    private static final Map<String, SigningKey> SIGNING_KEYS = new LinkedHashMap<String, SigningKey>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(
+                Map.Entry<String, SigningKey> eldest) {
+            return size() > 1000;
+        }
+    };
+
+    /**
+     * Returns the key under which the specified serialized entry is
+     * remembered once verified with the key of the specified feed: a digest
+     * of the entire entry, so that an entry whose content was altered but
+     * signature copied is verified anew, and the id of the feed whose key
+     * verified it, so that an entry accepted for one feed is verified anew
+     * when pushed in another.
+     */
+    private static String getVerifiedKey(String feedId, String entryId,
+            String serialized) throws IOException {
+        byte[] bytes = serialized.getBytes("UTF-8");
+        return feedId + ' ' + entryId + ' '
+                + Common.toHex(Common.hash(bytes, 0, bytes.length));
+    }
+
+    private static boolean isVerified(String verifiedKey) {
+        synchronized (VERIFIED) {
+            return VERIFIED.containsKey(verifiedKey);
+        }
+    }
+
+    private static void setVerified(String verifiedKey) {
+        synchronized (VERIFIED) {
+            VERIFIED.put(verifiedKey, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Keys of recently accepted entries, so relayed feeds that repeat them
+     * need not verify them again.
+     */
+    private static final Map<String, Boolean> VERIFIED = new LinkedHashMap<String, Boolean>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > 10000;
+        }
+    };
+
+    /**
+     * Verifies entry signatures in parallel; configurable with the
+     * "com.trsst.server.verify.threads" property, defaulting to the number
+     * of processors.
+     */
+    private static final ExecutorService VERIFY_EXECUTOR = Executors
+            .newFixedThreadPool(Integer.getInteger(
+                    "com.trsst.server.verify.threads", Runtime.getRuntime()
+                            .availableProcessors()), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Verify "
+                            + count.incrementAndGet());
+                    // never prevent exit
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Blocks until all writes made so far are visible to searches, for storage
+     * that makes writes searchable asynchronously.
+     */
+    private void waitUntilVisible() throws IOException {
+        if (persistence instanceof LuceneStorage) {
+            LuceneStorage storage = (LuceneStorage) persistence;
+            storage.waitForGeneration(storage.getGeneration());
+        }
     }
 
     /**
@@ -858,12 +1859,11 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                     timestamp = timestamp + existing.hashCode() % 1000;
                 }
 
-                try {
-                    // see if this file already exists
-                    persistence.readEntry(feedId, timestamp);
-                    // this file exists; remove from processing
+                // see if this entry already exists
+                if (persistence.containsEntry(feedId, timestamp)) {
+                    // this entry exists; remove from processing
                     entries.remove(entry);
-                } catch (FileNotFoundException e) {
+                } else {
                     // we don't already have it:
                     entry.setId(Common.toEntryUrn(feedId, timestamp));
                 }
@@ -896,16 +1896,26 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
 
         // persist feed
         persistence.updateFeed(feedId, feed.getUpdated(), feed.toString());
-        // only now persist each entry
+        // only now persist all entries in a single batch
+        persistence.updateEntries(feedId, toEntryRecords(entries));
+        feedChangedWhenVisible(feedId);
+    }
+
+    /**
+     * Converts the specified entries into records for a batch update.
+     */
+    private static List<EntryRecord> toEntryRecords(List<Entry> entries) {
+        List<EntryRecord> result = new ArrayList<EntryRecord>(entries.size());
         for (Entry entry : entries) {
             Date date = entry.getPublished();
             if (date == null) {
                 // fall back to updated if publish not set
                 date = entry.getUpdated();
             }
-            persistence.updateEntry(feedId, Common.toEntryId(entry.getId()),
-                    date, entry.toString());
+            result.add(new EntryRecord(Common.toEntryId(entry.getId()), date,
+                    entry.toString()));
         }
+        return result;
     }
 
     /**
@@ -1120,7 +2130,7 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                         .parse(new ByteArrayInputStream(bytes)).getRoot();
 
                 // we require a feed entity (not solo entries like atompub)
-                ingestFeed(incomingFeed);
+                ingestFeed(incomingFeed, true);
                 forwardIfNeeded(incomingFeed, request, bytes);
                 return ProviderHelper.returnBase(incomingFeed, 201, null);
             } catch (XMLSignatureException xmle) {
@@ -1303,34 +2313,55 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         }
 
         int length = ProviderHelper.getPageSize(context, "count", 25);
-        // int offset = ProviderHelper.getOffset(context, "page", length);
-        int maxresults = 999; // arbitrary: clients that need larger should page
-                              // themselves by date
         String _page = context.getParameter("page");
         int page = (_page != null) ? Integer.parseInt(_page) : 0;
-        long[] entryIds = persistence.getEntryIdsForFeedId(feedId, 0,
-                maxresults, beginDate, endDate, searchTerms, mentions, tags,
-                verb);
-        addPagingLinks(context, feed, page, length, entryIds.length,
+        String cursor = context.getParameter("cursor");
+        long[] entryIds;
+        if (cursor != null) {
+            // resume after the last entry of the previous page
+            long lastEntryId;
+            try {
+                lastEntryId = Long.parseLong(cursor, 16);
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Could not parse cursor: "
+                        + cursor);
+            }
+            entryIds = persistence.getNextEntryIdsForFeedId(feedId,
+                    lastEntryId, length, beginDate, endDate, searchTerms,
+                    mentions, tags, verb);
+        } else {
+            entryIds = persistence.getEntryIdsForFeedId(feedId, page * length,
+                    length, beginDate, endDate, searchTerms, mentions, tags,
+                    verb);
+        }
+        if (entryIds == null) {
+            entryIds = new long[0];
+        }
+        int totalCount = persistence.getEntryCountForFeedId(feedId, beginDate,
+                endDate, searchTerms, mentions, tags, verb);
+        String nextCursor = null;
+        if (entryIds.length == length
+                && totalCount > (page + 1) * length) {
+            nextCursor = Long.toHexString(entryIds[entryIds.length - 1]);
+        }
+        addPagingLinks(context, feed, page, length, totalCount, nextCursor,
                 searchTerms, before, after, mentions, tags, verb);
-        int start = page * length;
-        int end = Math.min(entryIds.length, start + length);
         Document<Entry> document;
-        for (int i = start; i < end; i++) {
-            document = getEntry(entryIds[i]);
+        for (long entryId : entryIds) {
+            document = getEntry(entryId);
             if (document != null) {
                 feed.addEntry((Entry) document.getRoot().clone());
             } else {
                 log.error("Could not find entry for id: " + feedId + " : "
-                        + Long.toHexString(entryIds[i]));
+                        + Long.toHexString(entryId));
             }
         }
     }
 
     private void addPagingLinks(RequestContext request, Feed feed,
             int currentPage, int itemsPerPage, int totalCount,
-            String searchTerms, String before, String after, String[] mentions,
-            String[] tags, String verb) {
+            String nextCursor, String searchTerms, String before, String after,
+            String[] mentions, String[] tags, String verb) {
         Map<String, Object> params = new HashMap<String, Object>();
         if (searchTerms != null) {
             params.put("q", searchTerms);
@@ -1368,11 +2399,13 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         String current = paging_template.expand(params);
         current = request.getResolvedUri().resolve(current).toString();
         feed.addLink(current, "current");
-        if (totalCount > (currentPage + 1) * itemsPerPage) {
+        if (nextCursor != null) {
             params.put("page", currentPage + 1);
+            params.put("cursor", nextCursor);
             String next = paging_template.expand(params);
             next = request.getResolvedUri().resolve(next).toString();
             feed.addLink(next, "next");
+            params.remove("cursor");
         }
         if (currentPage > 0) {
             params.put("page", currentPage - 1);
@@ -1418,18 +2451,36 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         String feedId = request.getTarget().getParameter("collection");
         String entryId = request.getTarget().getParameter("entry");
         String resourceId = request.getTarget().getParameter("resource");
-        InputStream input;
         try {
-            // FIXME: this requires a double-fetch of content;
-            // storage should return a struct with mimetype and content length
-            // and data
-            String mimetype = persistence.readFeedEntryResourceType(feedId,
-                    Common.toEntryId(entryId), resourceId);
-            input = persistence.readFeedEntryResource(feedId,
-                    Common.toEntryId(entryId), resourceId);
-            MediaResponseContext response = new MediaResponseContext(input,
-                    new EntityTag(resourceId), 200);
-            response.setContentType(mimetype);
+            ResourceDescriptor resource = persistence
+                    .readFeedEntryResourceDescriptor(feedId,
+                            Common.toEntryId(entryId), resourceId);
+            AbstractResponseContext response;
+            long length = resource.getLength();
+            if (length < 0) {
+                // length unknown: send everything
+                response = new MediaResponseContext(resource.openChannel(),
+                        200);
+                if (resource.getMimeType() != null) {
+                    response.setContentType(resource.getMimeType());
+                }
+            } else {
+                long[] range = getRequestedRange(request, length);
+                if (range == null) {
+                    response = new ResourceResponseContext(resource, 0, length,
+                            200);
+                } else if (range.length == 0) {
+                    response = new EmptyResponseContext(416);
+                    response.setHeader("Content-Range", "bytes */" + length);
+                } else {
+                    response = new ResourceResponseContext(resource, range[0],
+                            range[1] - range[0] + 1, 206);
+                    response.setHeader("Content-Range", "bytes " + range[0]
+                            + "-" + range[1] + "/" + length);
+                }
+                response.setHeader("Accept-Ranges", "bytes");
+            }
+            response.setEntityTag(new EntityTag(resourceId));
             return response;
         } catch (FileNotFoundException e) {
             return ProviderHelper.notfound(request);
@@ -1439,24 +2490,107 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         }
     }
 
+    /**
+     * Returns the first and last byte positions of a single byte range
+     * requested with a Range header, or null if the whole resource should be
+     * sent, or an empty array if the range cannot be satisfied.
+     */
+    private static long[] getRequestedRange(RequestContext request,
+            long length) {
+        String header = request.getHeader("Range");
+        if (header == null || length == 0) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+            return null; // multiple ranges not supported: send everything
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            if (dash == 0) {
+                // suffix range: the last n bytes
+                long suffix = Long.parseLong(spec.substring(1).trim());
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash).trim());
+                String end = spec.substring(dash + 1).trim();
+                last = end.length() == 0 ? Long.MAX_VALUE : Long
+                        .parseLong(end);
+                if (last < first) {
+                    return null; // invalid: ignore the header
+                }
+                if (first >= length) {
+                    return new long[0];
+                }
+                last = Math.min(last, length - 1);
+            }
+        } catch (NumberFormatException e) {
+            return null; // invalid: ignore the header
+        }
+        return new long[] { first, last };
+    }
+
     /**
      * Get metdata for a media resource
      */
     @Override
     public ResponseContext headMedia(RequestContext request) {
-        // TODO: implement HEAD support
+        // the response is only read when written, which never happens for
+        // a HEAD request
         return getMedia(request);
     }
 
     /**
-     * Checks to see if this request needs to be forwarded, and spawns tasks to
-     * do so if needed.
-     * 
-     * @param context
-     * @param hostUrl
+     * Checks to see if this request needs to be forwarded, and queues it to be
+     * forwarded in the background if needed.
      */
     private void forwardIfNeeded(Feed feed, RequestContext request,
-            byte[] requestData) {
+            byte[] requestData) throws IOException {
+        String url = getForwardUrl(feed, request);
+        if (url != null) {
+            getForwardQueue().forward(url, request.getContentType().toString(),
+                    feedId, getEntryIds(feed), requestData);
+        }
+    }
+
+    /**
+     * Checks to see if this request needs to be forwarded, and if so queues
+     * the specified spooled copy of the request, which is moved to the queue.
+     */
+    private void forwardIfNeeded(Feed feed, RequestContext request,
+            File requestFile) throws IOException {
+        String url = getForwardUrl(feed, request);
+        if (url != null) {
+            getForwardQueue().forward(url, request.getContentType().toString(),
+                    feedId, getEntryIds(feed), requestFile);
+        }
+    }
+
+    private static long[] getEntryIds(Feed feed) {
+        List<Entry> entries = feed.getEntries();
+        long[] result = new long[entries.size()];
+        int i = 0;
+        for (Entry entry : entries) {
+            result[i++] = Common.toEntryId(entry.getId());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the url to which the specified feed should be forwarded, or null
+     * if the feed is hosted here.
+     */
+    private static String getForwardUrl(Feed feed, RequestContext request) {
         IRI ourUri = request.getBaseUri();
         IRI theirUri = feed.getBaseUri();
         if (theirUri != null) {
@@ -1468,46 +2602,10 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                 // if (index != -1) {
                 // url = url.substring(0, index - 1); // trailing slash
                 // }
-                forwardPostToUrl(request,
-                        new ByteArrayInputStream(requestData), url);
+                return url;
             }
         }
-    }
-
-    /**
-     * Copies the current request and sends it to the specified host. Called
-     * when someone posts to us an entry whose home is on another server: we
-     * still ingest a copy but we make sure it gets where it needs to go.
-     * 
-     * @param context
-     * @param hostUrl
-     */
-    private void forwardPostToUrl(RequestContext request,
-            InputStream requestStream, String hostUrl) {
-        try {
-            URL url = new URL(hostUrl);
-            HttpURLConnection connection = (HttpURLConnection) url
-                    .openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", request
-                    .getContentType().toString());
-            connection.setDoInput(false);
-            connection.setDoOutput(true);
-            connection.connect();
-            OutputStream output = new BufferedOutputStream(
-                    connection.getOutputStream());
-            InputStream input = new BufferedInputStream(requestStream);
-            int len;
-            byte[] buf = new byte[256];
-            while ((len = input.read(buf)) != -1) {
-                output.write(buf, 0, len);
-            }
-            output.flush();
-            output.close();
-            connection.disconnect();
-        } catch (IOException ioe) {
-            log.warn("Unexpected error while forwarding: ", ioe);
-        }
+        return null;
     }
 
 }
\ No newline at end of file
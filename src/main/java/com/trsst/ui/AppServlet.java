@@ -15,6 +15,7 @@
  */
 package com.trsst.ui;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
@@ -30,6 +31,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.disk.DiskFileItem;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.tika.Tika;
@@ -89,6 +91,8 @@ public class AppServlet extends HttpServlet {
 
         // in case of any posted files
         InputStream inStream = null;
+        FileItem upload = null;
+        File uploadFile = null;
 
         // determine if supported command: pull, push, post
         String path = request.getPathInfo();
@@ -178,7 +182,15 @@ public class AppServlet extends HttpServlet {
                                     args.add("--" + name);
                                     args.add("-");
                                 }
-                                inStream = item.getInputStream();
+                                if (item instanceof DiskFileItem
+                                        && !item.isInMemory()) {
+                                    // already on disk: attach it in place
+                                    uploadFile = ((DiskFileItem) item)
+                                            .getStoreLocation();
+                                } else {
+                                    inStream = item.getInputStream();
+                                }
+                                upload = item;
                                 // NOTE: only handles one file!
                             } else {
                                 log.debug("Ignored form field: "
@@ -195,16 +207,29 @@ public class AppServlet extends HttpServlet {
                 args.add("--host");
                 args.add(client.getServer().getServiceURL().toString());
 
-                // send post data if any to command input stream
-                if (inStream != null) {
+                // attach the upload's file, or send it to command input stream
+                if (uploadFile != null) {
+                    args.add("--attach");
+                    args.add(uploadFile.getPath());
+                } else if (inStream != null) {
                     args.add("--attach");
                 }
                 //System.out.println(args);
 
                 PrintStream outStream = new PrintStream(
                         response.getOutputStream());
-                int result = new Command().doBegin(args.toArray(new String[0]),
-                        outStream, inStream);
+                int result;
+                try {
+                    result = new Command().doBegin(
+                            args.toArray(new String[0]), outStream, inStream);
+                } finally {
+                    if (inStream != null) {
+                        inStream.close();
+                    }
+                    if (upload != null) {
+                        upload.delete();
+                    }
+                }
                 if (result != 0) {
                     response.sendError(
                             HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
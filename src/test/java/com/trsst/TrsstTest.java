@@ -6,6 +6,7 @@ import java.net.URL;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
 
 import javax.xml.namespace.QName;
 
@@ -88,6 +89,16 @@ public class TrsstTest extends TestCase {
             assertNotNull("Generating encryption keys", encryptionKeys);
             feedId = Common.toFeedId(signingKeys.getPublic());
 
+            // base58 encoding
+            assertTrue("Feed id is account id", Common.isAccountId(feedId));
+            assertFalse("Truncated feed id is not account id",
+                    Common.isAccountId(feedId.substring(1)));
+            assertEquals("Feed id round trips", feedId,
+                    Common.toBase58(Common.fromBase58(feedId)));
+            byte[] zeros = new byte[] { 0, 0, 1, 57, 58, (byte) 255 };
+            assertTrue("Leading zeros round trip", Arrays.equals(zeros,
+                    Common.fromBase58(Common.toBase58(zeros))));
+
             // public key serialization
             publicKey = signingKeys.getPublic();
             assertEquals("Signing keys serialize",
@@ -0,0 +1,104 @@
+package com.trsst.server;
+
+import java.net.URL;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for relay peer ordering and hedge delays.
+ */
+public class RelayPeersTest extends TestCase {
+
+    private URL fast;
+    private URL slow;
+    private URL unknown;
+
+    public RelayPeersTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(RelayPeersTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        fast = new URL("http://fast.example.com/trsst");
+        slow = new URL("http://slow.example.com/trsst");
+        unknown = new URL("http://unknown.example.com/trsst");
+    }
+
+    public void testUnmeasuredPeersFirst() {
+        RelayPeers peers = new RelayPeers();
+        peers.succeeded(fast, 100);
+        peers.succeeded(slow, 800);
+        for (int i = 0; i < 10; i++) {
+            List<URL> order = peers.order(new URL[] { slow, fast, unknown });
+            assertEquals(unknown, order.get(0));
+            assertEquals(fast, order.get(1));
+            assertEquals(slow, order.get(2));
+        }
+    }
+
+    public void testFailuresDemote() {
+        RelayPeers peers = new RelayPeers();
+        peers.succeeded(slow, 300);
+        for (int i = 0; i < 10; i++) {
+            peers.failed(fast, 100);
+        }
+        List<URL> order = peers.order(new URL[] { fast, slow });
+        assertEquals(slow, order.get(0));
+    }
+
+    public void testHedgeDelay() {
+        RelayPeers peers = new RelayPeers();
+        assertEquals(RelayPeers.DEFAULT_HEDGE_DELAY, peers.getHedgeDelay(fast));
+
+        // steady latency converges on the average
+        for (int i = 0; i < 50; i++) {
+            peers.succeeded(fast, 200);
+        }
+        long delay = peers.getHedgeDelay(fast);
+        assertTrue(delay >= 200 && delay < 220);
+
+        // variable latency waits longer than the average
+        for (int i = 0; i < 50; i++) {
+            peers.succeeded(slow, i % 2 == 0 ? 100 : 300);
+        }
+        assertTrue(peers.getHedgeDelay(slow) > 400);
+    }
+
+    public void testHedgeDelayBounds() {
+        RelayPeers peers = new RelayPeers();
+        for (int i = 0; i < 50; i++) {
+            peers.succeeded(fast, 1);
+            peers.succeeded(slow, 60000);
+        }
+        assertEquals(RelayPeers.MIN_HEDGE_DELAY, peers.getHedgeDelay(fast));
+        assertEquals(RelayPeers.MAX_HEDGE_DELAY, peers.getHedgeDelay(slow));
+    }
+
+    public void testAbortedDoesNotLowerLatency() {
+        RelayPeers peers = new RelayPeers();
+        for (int i = 0; i < 50; i++) {
+            peers.succeeded(slow, 1000);
+        }
+        long delay = peers.getHedgeDelay(slow);
+        for (int i = 0; i < 50; i++) {
+            peers.aborted(slow, 100);
+        }
+        assertEquals(delay, peers.getHedgeDelay(slow));
+
+        // but losing still counts against the peer
+        peers.succeeded(fast, 1500);
+        List<URL> order = peers.order(new URL[] { slow, fast });
+        assertEquals(fast, order.get(0));
+
+        // and a loser slower than its average still raises it
+        peers.aborted(slow, 3000);
+        assertTrue(peers.getHedgeDelay(slow) > delay);
+    }
+
+}
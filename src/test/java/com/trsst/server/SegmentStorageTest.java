@@ -0,0 +1,240 @@
+package com.trsst.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import com.google.common.io.Files;
+import com.trsst.Common;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for segment file persistence.
+ */
+public class SegmentStorageTest extends TestCase {
+
+    private static final String FEED_ID = "1GfDWZCGKhTFvCbDPgfX3rHTWbGiT3wHW";
+
+    private File root;
+    private SegmentStorage storage;
+
+    public SegmentStorageTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(SegmentStorageTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        root = Files.createTempDir();
+        root.deleteOnExit();
+        storage = new SegmentStorage(root);
+    }
+
+    protected void tearDown() throws Exception {
+        storage.close();
+    }
+
+    private SegmentStorage reopen() {
+        storage.close();
+        storage = new SegmentStorage(root);
+        return storage;
+    }
+
+    private File getIndexFile() {
+        return new File(new File(new File(root, Common.encodeURL(FEED_ID)),
+                SegmentStorage.SEGMENT_DIR), SegmentStorage.INDEX_FILE);
+    }
+
+    private static String content(long entryId, int length) {
+        StringBuilder result = new StringBuilder("<entry id=\"" + entryId
+                + "\">");
+        while (result.length() < length) {
+            result.append('x');
+        }
+        return result.append("</entry>").toString();
+    }
+
+    public void testAppendAndRead() throws Exception {
+        storage.updateEntry(FEED_ID, 1, new Date(1000), content(1, 10));
+        storage.updateEntry(FEED_ID, 2, new Date(2000), content(2, 10));
+        assertEquals(content(1, 10), storage.readEntry(FEED_ID, 1));
+        assertEquals(content(2, 10), storage.readEntry(FEED_ID, 2));
+        assertTrue(storage.containsEntry(FEED_ID, 2));
+        assertFalse(storage.containsEntry(FEED_ID, 3));
+
+        // most recent first
+        long[] ids = storage.getEntryIdsForFeedId(FEED_ID, 0, 10, null, null,
+                null, null, null, null);
+        assertTrue(Arrays.equals(new long[] { 2, 1 }, ids));
+        assertEquals(2, storage.getEntryCountForFeedId(FEED_ID, null, null,
+                null, null, null, null));
+
+        // replacing an entry keeps one copy
+        storage.updateEntry(FEED_ID, 1, new Date(3000), content(1, 20));
+        assertEquals(content(1, 20), storage.readEntry(FEED_ID, 1));
+        ids = storage.getNextEntryIdsForFeedId(FEED_ID, 1, 10, null, null,
+                null, null, null, null);
+        assertTrue(Arrays.equals(new long[] { 2 }, ids));
+    }
+
+    public void testBatch() throws Exception {
+        List<EntryRecord> entries = new ArrayList<EntryRecord>();
+        for (long i = 1; i <= 10; i++) {
+            entries.add(new EntryRecord(i, new Date(i * 1000), content(i, 10)));
+        }
+        storage.updateEntries(FEED_ID, entries);
+        reopen();
+        for (long i = 1; i <= 10; i++) {
+            assertEquals(content(i, 10), storage.readEntry(FEED_ID, i));
+        }
+    }
+
+    public void testDelete() throws Exception {
+        storage.updateEntry(FEED_ID, 1, new Date(1000), content(1, 10));
+        storage.updateEntry(FEED_ID, 2, new Date(2000), content(2, 10));
+        storage.deleteEntry(FEED_ID, 1);
+        assertFalse(storage.containsEntry(FEED_ID, 1));
+        try {
+            storage.readEntry(FEED_ID, 1);
+            fail("Deleted entry was read");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        // deletes survive a restart
+        reopen();
+        assertFalse(storage.containsEntry(FEED_ID, 1));
+        assertEquals(content(2, 10), storage.readEntry(FEED_ID, 2));
+    }
+
+    public void testReplay() throws Exception {
+        for (long i = 1; i <= 1000; i++) {
+            storage.updateEntry(FEED_ID, i, new Date(i * 1000), content(i, 10));
+        }
+        storage.deleteEntry(FEED_ID, 500);
+        storage.updateEntry(FEED_ID, 600, new Date(1), content(600, 20));
+        reopen();
+        assertEquals(999, storage.getEntryCountForFeedId(FEED_ID, null, null,
+                null, null, null, null));
+        assertFalse(storage.containsEntry(FEED_ID, 500));
+        assertEquals(content(600, 20), storage.readEntry(FEED_ID, 600));
+        assertEquals(content(1000, 10), storage.readEntry(FEED_ID, 1000));
+        long[] ids = storage.getEntryIdsForFeedId(FEED_ID, 998, 10, null,
+                null, null, null, null, null);
+        assertTrue(Arrays.equals(new long[] { 600 }, ids));
+    }
+
+    public void testTruncatedIndex() throws Exception {
+        storage.updateEntry(FEED_ID, 1, new Date(1000), content(1, 10));
+        storage.updateEntry(FEED_ID, 2, new Date(2000), content(2, 10));
+        storage.close();
+        File index = getIndexFile();
+        long recordLength = index.length() / 2;
+
+        // simulate a write torn part way through the second record
+        RandomAccessFile file = new RandomAccessFile(index, "rw");
+        try {
+            file.setLength(recordLength + 20);
+        } finally {
+            file.close();
+        }
+
+        reopen();
+        assertTrue(storage.containsEntry(FEED_ID, 1));
+        assertFalse(storage.containsEntry(FEED_ID, 2));
+        assertEquals(recordLength, index.length());
+
+        // later writes are aligned and survive a restart
+        storage.updateEntry(FEED_ID, 3, new Date(3000), content(3, 10));
+        assertEquals(recordLength * 2, index.length());
+        reopen();
+        assertTrue(storage.containsEntry(FEED_ID, 1));
+        assertEquals(content(3, 10), storage.readEntry(FEED_ID, 3));
+    }
+
+    public void testCompact() throws Exception {
+        for (long i = 1; i <= 600; i++) {
+            storage.updateEntry(FEED_ID, i, new Date(i * 1000),
+                    content(i, 2048));
+        }
+        for (long i = 1; i <= 500; i++) {
+            storage.deleteEntry(FEED_ID, i);
+        }
+        File directory = getIndexFile().getParentFile();
+        long before = sizeOf(directory);
+        storage.compact();
+        assertTrue(sizeOf(directory) < before / 2);
+        for (long i = 501; i <= 600; i++) {
+            assertEquals(content(i, 2048), storage.readEntry(FEED_ID, i));
+        }
+        storage.updateEntry(FEED_ID, 601, new Date(601000), content(601, 10));
+
+        reopen();
+        assertEquals(101, storage.getEntryCountForFeedId(FEED_ID, null, null,
+                null, null, null, null));
+        assertFalse(storage.containsEntry(FEED_ID, 1));
+        assertEquals(content(550, 2048), storage.readEntry(FEED_ID, 550));
+        assertEquals(content(601, 10), storage.readEntry(FEED_ID, 601));
+    }
+
+    private static long sizeOf(File directory) {
+        long result = 0;
+        for (File file : directory.listFiles()) {
+            result += file.length();
+        }
+        return result;
+    }
+
+    public void testContainsSignature() throws Exception {
+        String signed = "<entry><ds:Signature><ds:SignatureValue>\nabc+/\nde="
+                + "\n</ds:SignatureValue></ds:Signature></entry>";
+        storage.updateEntry(FEED_ID, 1, new Date(1000), signed);
+        assertTrue(storage.containsEntry(FEED_ID, 1, "abc+/de="));
+        assertFalse(storage.containsEntry(FEED_ID, 1, "abc+/dd="));
+        assertFalse(storage.containsEntry(FEED_ID, 2, "abc+/de="));
+
+        // signatures of replayed entries are read when first needed
+        reopen();
+        assertFalse(storage.containsEntry(FEED_ID, 1, "abc+/dd="));
+        assertTrue(storage.containsEntry(FEED_ID, 1, "abc+/de="));
+        storage.deleteEntry(FEED_ID, 1);
+        assertFalse(storage.containsEntry(FEED_ID, 1, "abc+/de="));
+    }
+
+    public void testReadsDoNotCreateFeeds() throws Exception {
+        assertFalse(storage.containsEntry(FEED_ID, 1));
+        assertEquals(0, storage.getEntryCountForFeedId(FEED_ID, null, null,
+                null, null, null, null));
+        assertFalse(new File(root, Common.encodeURL(FEED_ID)).exists());
+    }
+
+    public void testUnloadedFeedsReload() throws Exception {
+        storage.updateEntry(FEED_ID, 1, new Date(1000), content(1, 10));
+        for (int i = 0; i < 1500; i++) {
+            assertFalse(storage.containsEntry("feed" + i, 1));
+        }
+        storage.updateEntry(FEED_ID, 2, new Date(2000), content(2, 10));
+        assertEquals(content(1, 10), storage.readEntry(FEED_ID, 1));
+        assertEquals(content(2, 10), storage.readEntry(FEED_ID, 2));
+    }
+
+    public void testFiltersRejected() throws Exception {
+        try {
+            storage.getNextEntryIdsForFeedId(FEED_ID, 1, 10, null, null,
+                    "query", null, null, null);
+            fail("Filter was ignored");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}